@@ -0,0 +1,131 @@
+package com.nijiko.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds a CachedStorage: remembers when each cached entry was last used and
+ * evicts the least recently used ones once there are too many, and entries
+ * left unused for longer than the expiry.
+ * <p>
+ * Reads only store a timestamp in a concurrent map, so a cache hit takes no
+ * lock. Eviction sorts a snapshot and trims to 90% of the limit, so its cost
+ * is spread over the entries added since the last trim. The order is
+ * therefore approximate within a millisecond, and the limit can be overshot
+ * by entries added while a trim runs.
+ */
+final class AccessTracker {
+
+    private static final long minSweepInterval = 1000L;
+    private static final long maxSweepInterval = 60000L;
+
+    private final CachedStorage cache;
+    private final int maxEntries;
+    private final long expireAfterAccess;
+    private final ConcurrentMap<String, Long> lastAccess = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean trimming = new AtomicBoolean();
+    private final AtomicLong nextSweep;
+
+    AccessTracker(CachedStorage cache, int maxEntries, long expireAfterAccess) {
+        this.cache = cache;
+        this.maxEntries = maxEntries;
+        this.expireAfterAccess = expireAfterAccess;
+        this.nextSweep = new AtomicLong(System.currentTimeMillis() + sweepInterval());
+    }
+
+    /**
+     * Records a use of the entry. If it had expired, its cached data is
+     * dropped first so the caller reloads it.
+     */
+    void touch(String name) {
+        long now = System.currentTimeMillis();
+        Long last = lastAccess.get(name);
+        if (last == null || last != now) {
+            if (last != null && expireAfterAccess > 0 && now - last > expireAfterAccess && !cache.writesQueued(name))
+                cache.evict(name);
+            if (lastAccess.put(name, now) == null && size.incrementAndGet() > maxEntries && maxEntries > 0)
+                trim(now);
+        }
+        if (now >= nextSweep.get())
+            sweep(now);
+    }
+
+    void forget(String name) {
+        if (lastAccess.remove(name) != null)
+            size.decrementAndGet();
+    }
+
+    void clear() {
+        lastAccess.clear();
+        size.set(0);
+    }
+
+    /**
+     * Evicts the least recently used entries down to 90% of the limit.
+     */
+    private void trim(long now) {
+        if (!trimming.compareAndSet(false, true))
+            return;
+        try {
+            List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(lastAccess.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                    long x = a.getValue();
+                    long y = b.getValue();
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            });
+            int excess = entries.size() - maxEntries * 9 / 10;
+            for (Map.Entry<String, Long> entry : entries) {
+                if (excess <= 0)
+                    break;
+                // Kept until its queued writes are committed; a reload would miss them
+                if (cache.writesQueued(entry.getKey()))
+                    continue;
+                if (lastAccess.remove(entry.getKey(), entry.getValue())) {
+                    size.decrementAndGet();
+                    cache.evict(entry.getKey());
+                    excess--;
+                }
+            }
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    /**
+     * Evicts expired entries, and cached entries that lost their timestamp
+     * to an eviction racing with their load.
+     */
+    private void sweep(long now) {
+        long due = nextSweep.get();
+        if (now < due || !nextSweep.compareAndSet(due, now + sweepInterval()))
+            return;
+        if (expireAfterAccess > 0) {
+            for (Map.Entry<String, Long> entry : lastAccess.entrySet()) {
+                if (now - entry.getValue() > expireAfterAccess && !cache.writesQueued(entry.getKey()) && lastAccess.remove(entry.getKey(), entry.getValue())) {
+                    size.decrementAndGet();
+                    cache.evict(entry.getKey());
+                }
+            }
+        }
+        for (String name : cache.cachedNames()) {
+            if (!lastAccess.containsKey(name) && !cache.writesQueued(name))
+                cache.evict(name);
+        }
+    }
+
+    private long sweepInterval() {
+        return expireAfterAccess > 0 ? Math.min(Math.max(expireAfterAccess / 2, minSweepInterval), maxSweepInterval) : maxSweepInterval;
+    }
+}
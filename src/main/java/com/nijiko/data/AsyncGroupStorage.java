@@ -0,0 +1,46 @@
+package com.nijiko.data;
+
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * {@link AsyncStorage} with the group-only reads.
+ */
+public class AsyncGroupStorage extends AsyncStorage {
+
+    private final GroupStorage groups;
+
+    public AsyncGroupStorage(GroupStorage storage) {
+        super(storage);
+        this.groups = storage;
+    }
+
+    public Future<Boolean> isDefault(final String name) {
+        return read(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return groups.isDefault(name);
+            }
+        });
+    }
+
+    public Future<Set<String>> getTracks() {
+        return read(new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() {
+                return groups.getTracks();
+            }
+        });
+    }
+
+    public Future<LinkedList<GroupWorld>> getTrack(final String track) {
+        return read(new Callable<LinkedList<GroupWorld>>() {
+            @Override
+            public LinkedList<GroupWorld> call() {
+                return groups.getTrack(track);
+            }
+        });
+    }
+}
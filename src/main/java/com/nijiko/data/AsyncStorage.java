@@ -0,0 +1,278 @@
+package com.nijiko.data;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.nijiko.permissions.EntryType;
+
+/**
+ * Non-blocking view of a storage. Every call that may touch the database runs
+ * on the SQL executor and returns a Future; reads a {@link CachedStorage}
+ * already holds complete immediately on the calling thread. Writes are applied
+ * in the order they were submitted, and a read of an entry submitted after a
+ * write to it sees that write. A full executor queue fails the returned
+ * future with a RejectedExecutionException.
+ */
+public class AsyncStorage {
+
+    protected final Storage storage;
+    private final CachedStorage cache;
+    private final DbExecutor executor;
+
+    public AsyncStorage(Storage storage) {
+        this(storage, SqlStorage.getExecutor());
+    }
+
+    AsyncStorage(Storage storage, DbExecutor executor) {
+        if (executor == null)
+            throw new IllegalStateException("SQL storage is not initialized.");
+        this.storage = storage;
+        this.cache = storage instanceof CachedStorage ? (CachedStorage) storage : null;
+        this.executor = executor;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public EntryType getType() {
+        return storage.getType();
+    }
+
+    public String getWorld() {
+        return storage.getWorld();
+    }
+
+    public Future<Set<String>> getPermissions(final String name) {
+        if (cache != null && !executor.isWriting(key(name))) {
+            Set<String> perms = cache.peekPermissions(name);
+            if (perms != null)
+                return ImmediateFuture.of(perms);
+        }
+        return read(name, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() {
+                return storage.getPermissions(name);
+            }
+        });
+    }
+
+    public Future<LinkedHashSet<GroupWorld>> getParents(final String name) {
+        if (cache != null && !executor.isWriting(key(name))) {
+            LinkedHashSet<GroupWorld> parents = cache.peekParents(name);
+            if (parents != null)
+                return ImmediateFuture.of(parents);
+        }
+        return read(name, new Callable<LinkedHashSet<GroupWorld>>() {
+            @Override
+            public LinkedHashSet<GroupWorld> call() {
+                return storage.getParents(name);
+            }
+        });
+    }
+
+    public Future<Set<String>> getEntries() {
+        return read(new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() {
+                return storage.getEntries();
+            }
+        });
+    }
+
+    public Future<String> getString(final String name, final String path) {
+        DataValue value = peekData(name, path);
+        if (value != null)
+            return ImmediateFuture.of(value.asString());
+        return read(name, new Callable<String>() {
+            @Override
+            public String call() {
+                return storage.getString(name, path);
+            }
+        });
+    }
+
+    public Future<Integer> getInt(final String name, final String path) {
+        DataValue value = peekData(name, path);
+        if (value != null)
+            return ImmediateFuture.of(value.asInt());
+        return read(name, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return storage.getInt(name, path);
+            }
+        });
+    }
+
+    public Future<Double> getDouble(final String name, final String path) {
+        DataValue value = peekData(name, path);
+        if (value != null)
+            return ImmediateFuture.of(value.asDouble());
+        return read(name, new Callable<Double>() {
+            @Override
+            public Double call() {
+                return storage.getDouble(name, path);
+            }
+        });
+    }
+
+    public Future<Boolean> getBool(final String name, final String path) {
+        DataValue value = peekData(name, path);
+        if (value != null)
+            return ImmediateFuture.of(value.asBool());
+        return read(name, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return storage.getBool(name, path);
+            }
+        });
+    }
+
+    public Future<Void> addPermission(final String name, final String permission) {
+        return write(name, new Callable<Void>() {
+            @Override
+            public Void call() {
+                storage.addPermission(name, permission);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> removePermission(final String name, final String permission) {
+        return write(name, new Callable<Void>() {
+            @Override
+            public Void call() {
+                storage.removePermission(name, permission);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> addParent(final String name, final String groupWorld, final String groupName) {
+        return write(name, new Callable<Void>() {
+            @Override
+            public Void call() {
+                storage.addParent(name, groupWorld, groupName);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> removeParent(final String name, final String groupWorld, final String groupName) {
+        return write(name, new Callable<Void>() {
+            @Override
+            public Void call() {
+                storage.removeParent(name, groupWorld, groupName);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> setParents(final String name, LinkedHashSet<GroupWorld> groupWs) {
+        final LinkedHashSet<GroupWorld> parents = new LinkedHashSet<GroupWorld>(groupWs);
+        return write(name, new Callable<Void>() {
+            @Override
+            public Void call() {
+                storage.setParents(name, parents);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> setData(final String name, final String path, final Object data) {
+        return write(name, new Callable<Void>() {
+            @Override
+            public Void call() {
+                storage.setData(name, path, data);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> removeData(final String name, final String path) {
+        return write(name, new Callable<Void>() {
+            @Override
+            public Void call() {
+                storage.removeData(name, path);
+                return null;
+            }
+        });
+    }
+
+    public Future<Boolean> create(final String name) {
+        return write(name, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return storage.create(name);
+            }
+        });
+    }
+
+    public Future<Boolean> delete(final String name) {
+        return write(name, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return storage.delete(name);
+            }
+        });
+    }
+
+    /**
+     * Completes once every write submitted before it has reached the database.
+     */
+    public Future<Void> forceSave() {
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                storage.forceSave();
+                return null;
+            }
+        });
+    }
+
+    private DataValue peekData(String name, String path) {
+        return cache == null || executor.isWriting(key(name)) ? null : cache.peekData(name, path);
+    }
+
+    private String key(String name) {
+        return getWorld() + ":" + getType() + ":" + name;
+    }
+
+    protected <T> Future<T> read(Callable<T> call) {
+        try {
+            return executor.read(call);
+        } catch (RejectedExecutionException e) {
+            return ImmediateFuture.failed(e);
+        }
+    }
+
+    /**
+     * A read of one entry; it waits behind queued writes to that entry.
+     */
+    protected <T> Future<T> read(String name, Callable<T> call) {
+        try {
+            return executor.read(key(name), call);
+        } catch (RejectedExecutionException e) {
+            return ImmediateFuture.failed(e);
+        }
+    }
+
+    protected <T> Future<T> write(Callable<T> call) {
+        try {
+            return executor.write(call);
+        } catch (RejectedExecutionException e) {
+            return ImmediateFuture.failed(e);
+        }
+    }
+
+    protected <T> Future<T> write(String name, Callable<T> call) {
+        try {
+            return executor.write(key(name), call);
+        } catch (RejectedExecutionException e) {
+            return ImmediateFuture.failed(e);
+        }
+    }
+}
@@ -1,85 +1,274 @@
 package com.nijiko.data;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.nijiko.permissions.EntryType;
 
+/**
+ * Caches the wrapped storage's reads. Safe to use from any thread: the maps
+ * are concurrent, cached permission and parent sets are copied on write and
+ * never modified once cached, and concurrent misses on the same entry and
+ * kind of data share a single load.
+ * <p>
+ * By default entries stay cached until a reload. A cache built with a size
+ * limit or an expiry evicts entries through an {@link AccessTracker} instead.
+ */
 public abstract class CachedStorage implements Storage {
-    
-    private final Map<String, Set<String>> permissions = new HashMap<String, Set<String>>();
-    private final Map<String, LinkedHashSet<GroupWorld>> parents = new HashMap<String, LinkedHashSet<GroupWorld>>();
-    private final Map<String, Map<String, Object>> data = new HashMap<String, Map<String, Object>>();
-    
+
+    private final ConcurrentMap<String, PermissionSet> permissions = new ConcurrentHashMap<String, PermissionSet>();
+    private final ConcurrentMap<String, LinkedHashSet<GroupWorld>> parents = new ConcurrentHashMap<String, LinkedHashSet<GroupWorld>>();
+    private final ConcurrentMap<String, EntryData> data = new ConcurrentHashMap<String, EntryData>();
+    private final SingleFlight<LoadKey, Object> loads = new SingleFlight<LoadKey, Object>();
+    private volatile EffectivePermissions resolver;
+    private final AccessTracker tracker; // Null when unbounded
+    // Bumped by every invalidation, so a load that read the database before one isn't cached
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * The data paths of one entry. Copied on write like the permission sets.
+     * A complete map came from a bulk load, so a path it lacks has no value;
+     * otherwise paths are loaded one by one.
+     */
+    private static final class EntryData {
+        final Map<String, DataValue> values;
+        final boolean complete;
+
+        EntryData(Map<String, DataValue> values, boolean complete) {
+            this.values = values;
+            this.complete = complete;
+        }
+
+        /**
+         * The cached value of a path, or null if it would need a load.
+         */
+        DataValue get(String path) {
+            DataValue value = values.get(path);
+            return value == null && complete ? DataValue.NONE : value;
+        }
+
+        EntryData with(String path, DataValue value) {
+            Map<String, DataValue> copy = new HashMap<String, DataValue>(values);
+            copy.put(path, value);
+            return new EntryData(copy, complete);
+        }
+    }
+
+    private static final class LoadKey {
+        final char kind;
+        final String name;
+        final String path;
+
+        LoadKey(char kind, String name, String path) {
+            this.kind = kind;
+            this.name = name;
+            this.path = path;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = kind * 31 + (name == null ? 0 : name.hashCode());
+            return h * 31 + (path == null ? 0 : path.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LoadKey))
+                return false;
+            LoadKey other = (LoadKey) o;
+            return kind == other.kind && (name == null ? other.name == null : name.equals(other.name)) && (path == null ? other.path == null : path.equals(other.path));
+        }
+    }
+
     public CachedStorage(Storage wrapped) {
+        this(wrapped, 0, 0L);
+    }
+
+    /**
+     * @param maxEntries entries kept before the least recently used are evicted, 0 for no limit
+     * @param expireAfterAccess ms an entry may go unused before it is evicted, 0 for never
+     */
+    public CachedStorage(Storage wrapped, int maxEntries, long expireAfterAccess) {
         if (wrapped instanceof CachedStorage)
             throw new RuntimeException("No Cacheception, please.");
+        tracker = maxEntries > 0 || expireAfterAccess > 0 ? new AccessTracker(this, maxEntries, expireAfterAccess) : null;
     }
-    
+
+    /**
+     * The entry's own permissions. The returned set is read-only; it is the
+     * cached one, not a copy.
+     */
     @Override
     public Set<String> getPermissions(String name) {
-        Set<String> perms = permissions.get(name);
+        return Collections.unmodifiableSet(permissionSet(name));
+    }
+
+    /**
+     * Resolves a permission against the entry's own nodes, wildcards and
+     * negations included: TRUE if granted, FALSE if negated, null if the
+     * entry doesn't mention it. Inheritance is left to
+     * {@link EffectivePermissions}.
+     */
+    public Boolean checkPermission(String name, String permission) {
+        return permissionSet(name).check(permission);
+    }
+
+    private PermissionSet permissionSet(final String name) {
+        touch(name);
+        PermissionSet perms = permissions.get(name);
         if (perms == null) {
-            perms = getWrapped().getPermissions(name);
-            permissions.put(name, perms);
+            perms = cast(loads.run(new LoadKey('p', name, null), new Callable<Object>() {
+                @Override
+                public Object call() {
+                    PermissionSet loaded = permissions.get(name);
+                    if (loaded == null) {
+                        long start = generation.get();
+                        loaded = keep(permissions, name, PermissionSet.of(getWrapped().getPermissions(name)), start);
+                    }
+                    return loaded;
+                }
+            }));
         }
         return perms;
     }
 
     @Override
     public void addPermission(String name, String permission) {
-        if (permissions.get(name) == null) {
-            permissions.put(name, new HashSet<String>());
+        while (true) {
+            PermissionSet old = permissionSet(name);
+            PermissionSet perms = new PermissionSet(old);
+            perms.add(permission);
+            if (permissions.replace(name, old, perms))
+                break;
         }
-        permissions.get(name).add(permission);
+        changed(name);
         getWrapped().addPermission(name, permission);
     }
 
     @Override
     public void removePermission(String name, String permission) {
-        if (permissions.get(name) == null) {
-            permissions.put(name, new HashSet<String>());
+        while (true) {
+            PermissionSet old = permissionSet(name);
+            PermissionSet perms = new PermissionSet(old);
+            perms.remove(permission);
+            if (permissions.replace(name, old, perms))
+                break;
         }
-        permissions.get(name).remove(permission);
+        changed(name);
         getWrapped().removePermission(name, permission);
     }
 
+    /**
+     * The entry's parents, in order. The returned set is a copy.
+     */
     @Override
     public LinkedHashSet<GroupWorld> getParents(String name) {
+        return new LinkedHashSet<GroupWorld>(parentSet(name));
+    }
+
+    /**
+     * Read-only view of the cached parents, for callers that only iterate.
+     */
+    Set<GroupWorld> parentView(String name) {
+        return Collections.unmodifiableSet(parentSet(name));
+    }
+
+    private LinkedHashSet<GroupWorld> parentSet(final String name) {
+        touch(name);
         LinkedHashSet<GroupWorld> entryParents = parents.get(name);
         if (entryParents == null) {
-            entryParents = getWrapped().getParents(name);
-            parents.put(name, entryParents);
+            entryParents = cast(loads.run(new LoadKey('i', name, null), new Callable<Object>() {
+                @Override
+                public Object call() {
+                    LinkedHashSet<GroupWorld> loaded = parents.get(name);
+                    if (loaded == null) {
+                        long start = generation.get();
+                        loaded = keep(parents, name, getWrapped().getParents(name), start);
+                    }
+                    return loaded;
+                }
+            }));
         }
         return entryParents;
     }
 
+    /**
+     * Bulk form of {@link #getParents(String)}. Entries that aren't cached yet
+     * are resolved together when the wrapped storage supports it.
+     */
+    public Map<String, LinkedHashSet<GroupWorld>> getParents(Collection<String> names) {
+        Map<String, LinkedHashSet<GroupWorld>> result = new HashMap<String, LinkedHashSet<GroupWorld>>();
+        List<String> missing = new ArrayList<String>();
+        for (String name : names) {
+            touch(name);
+            LinkedHashSet<GroupWorld> entryParents = parents.get(name);
+            if (entryParents != null)
+                result.put(name, new LinkedHashSet<GroupWorld>(entryParents));
+            else
+                missing.add(name);
+        }
+        if (missing.isEmpty())
+            return result;
+        Storage wrapped = getWrapped();
+        if (wrapped instanceof SqlEntryStorage) {
+            long start = generation.get();
+            Map<String, LinkedHashSet<GroupWorld>> loaded = ((SqlEntryStorage) wrapped).getParents(missing);
+            for (Map.Entry<String, LinkedHashSet<GroupWorld>> entry : loaded.entrySet()) {
+                result.put(entry.getKey(), new LinkedHashSet<GroupWorld>(keep(parents, entry.getKey(), entry.getValue(), start)));
+            }
+        } else {
+            for (String name : missing) {
+                result.put(name, getParents(name));
+            }
+        }
+        return result;
+    }
+
     @Override
     public void addParent(String name, String groupWorld, String groupName) {
         GroupWorld gw = new GroupWorld(groupWorld, groupName);
-        if (parents.get(name) == null) {
-            parents.put(name, new LinkedHashSet<GroupWorld>());
+        while (true) {
+            LinkedHashSet<GroupWorld> old = parentSet(name);
+            LinkedHashSet<GroupWorld> entryParents = new LinkedHashSet<GroupWorld>(old);
+            if (!entryParents.add(gw))
+                return; // Already a parent; nothing to write
+            if (parents.replace(name, old, entryParents))
+                break;
         }
-        parents.get(name).add(gw);
-        getWrapped().addParent(name, groupWorld, groupName);        
+        changed(name);
+        getWrapped().addParent(name, groupWorld, groupName);
     }
 
     @Override
     public void removeParent(String name, String groupWorld, String groupName) {
         GroupWorld gw = new GroupWorld(groupWorld, groupName);
-        if (parents.get(name) == null) {
-            parents.put(name, new LinkedHashSet<GroupWorld>());
+        while (true) {
+            LinkedHashSet<GroupWorld> old = parentSet(name);
+            LinkedHashSet<GroupWorld> entryParents = new LinkedHashSet<GroupWorld>(old);
+            if (!entryParents.remove(gw))
+                return; // Not a parent; nothing to write
+            if (parents.replace(name, old, entryParents))
+                break;
         }
-        parents.get(name).remove(gw);
-        getWrapped().removeParent(name, groupWorld, groupName);                
+        changed(name);
+        getWrapped().removeParent(name, groupWorld, groupName);
     }
-    
+
     @Override
     public void setParents(String name, LinkedHashSet<GroupWorld> groupWs) {
-        parents.put(name, groupWs);
+        parents.put(name, new LinkedHashSet<GroupWorld>(groupWs));
+        changed(name);
         getWrapped().setParents(name, groupWs);
     }
 
@@ -97,12 +286,10 @@ public abstract class CachedStorage implements Storage {
     public boolean create(String name) {
         return getWrapped().create(name);
     }
-    
+
     @Override
     public boolean delete(String name) {
-        permissions.remove(name);
-        parents.remove(name);
-        data.remove(name);
+        evict(name);
         return getWrapped().delete(name);
     }
 
@@ -124,9 +311,13 @@ public abstract class CachedStorage implements Storage {
     @Override
     public void reload() {
         getWrapped().reload();
+        generation.incrementAndGet();
         permissions.clear();
         parents.clear();
         data.clear();
+        if (tracker != null)
+            tracker.clear();
+        changedAll();
     }
 
     @Override
@@ -141,66 +332,22 @@ public abstract class CachedStorage implements Storage {
 
     @Override
     public String getString(String name, String path) {
-        if (data.get(name) == null) {
-            data.put(name, new HashMap<String, Object>());
-        } else {
-            Object o = data.get(name).get(path);
-            if (data.get(name).containsKey(path) && o == null)
-                return null;
-            if (o != null)
-                return o.toString();
-        }
-        String str = getWrapped().getString(name, path);
-        data.get(name).put(path, str);
-        return str;
+        return dataValue(name, path).asString();
     }
 
     @Override
     public Integer getInt(String name, String path) {
-        if (data.get(name) == null) {
-            data.put(name, new HashMap<String, Object>());
-        } else {
-            Object o = data.get(name).get(path);
-            if (data.get(name).containsKey(path) && o == null)
-                return null;
-            if (o instanceof Integer)
-                return (Integer) o;
-        }
-        Integer val = getWrapped().getInt(name, path);
-        data.get(name).put(path, val);
-        return val;
+        return dataValue(name, path).asInt();
     }
 
     @Override
     public Double getDouble(String name, String path) {
-        if (data.get(name) == null) {
-            data.put(name, new HashMap<String, Object>());
-        } else {
-            Object o = data.get(name).get(path);
-            if (data.get(name).containsKey(path) && o == null)
-                return null;
-            if (o instanceof Double)
-                return (Double) o;
-        }
-        Double val = getWrapped().getDouble(name, path);
-        data.get(name).put(path, val);
-        return val;
+        return dataValue(name, path).asDouble();
     }
 
     @Override
     public Boolean getBool(String name, String path) {
-        if (data.get(name) == null) {
-            data.put(name, new HashMap<String, Object>());
-        } else {
-            Object o = data.get(name).get(path);
-            if (data.get(name).containsKey(path) && o == null)
-                return null;
-            if (o instanceof Boolean)
-                return (Boolean) o;
-        }
-        Boolean val = getWrapped().getBool(name, path);
-        data.get(name).put(path, val);
-        return val;
+        return dataValue(name, path).asBool();
     }
 
     @Override
@@ -208,20 +355,266 @@ public abstract class CachedStorage implements Storage {
         if (!(o instanceof Integer) && !(o instanceof Boolean) && !(o instanceof Double) && !(o instanceof String)) {
             throw new IllegalArgumentException("Only ints, bools, doubles and Strings are allowed!");
         }
-        if (data.get(name) == null) {
-            data.put(name, new HashMap<String, Object>());
-        }
-        data.get(name).put(path, o);
+        putData(name, path, DataValue.of(o));
         getWrapped().setData(name, path, o);
     }
 
     @Override
     public void removeData(String name, String path) {
-        if (data.get(name) != null) {
-            data.get(name).remove(path);
-        }
+        putData(name, path, DataValue.NONE);
         getWrapped().removeData(name, path);
     }
 
+    /**
+     * Fills the cache from a whole-world read, replacing anything already
+     * cached for the preloaded entries.
+     */
+    void preload(WorldPreload preload) {
+        for (Map.Entry<String, Set<String>> entry : preload.permissions.entrySet()) {
+            permissions.put(entry.getKey(), PermissionSet.of(entry.getValue()));
+        }
+        parents.putAll(preload.parents);
+        for (Map.Entry<String, Map<String, Object>> entry : preload.data.entrySet()) {
+            Map<String, DataValue> values = new HashMap<String, DataValue>();
+            for (Map.Entry<String, Object> value : entry.getValue().entrySet()) {
+                values.put(value.getKey(), new DataValue((String) value.getValue()));
+            }
+            data.put(entry.getKey(), new EntryData(values, true));
+        }
+        if (tracker != null) {
+            for (String name : preload.permissions.keySet()) {
+                tracker.touch(name);
+            }
+        }
+        changedAll();
+    }
+
+    /**
+     * Drops what a change of the given {@link ChangeLog} kind made stale, so
+     * the next read loads it again.
+     */
+    void invalidate(String name, byte kind) {
+        generation.incrementAndGet();
+        switch (kind) {
+        case ChangeLog.PERMISSIONS:
+            permissions.remove(name);
+            break;
+        case ChangeLog.PARENTS:
+            parents.remove(name);
+            break;
+        case ChangeLog.DATA:
+            data.remove(name);
+            break;
+        default:
+            permissions.remove(name);
+            parents.remove(name);
+            data.remove(name);
+        }
+        if (kind != ChangeLog.DATA)
+            changed(name);
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet();
+        permissions.clear();
+        parents.clear();
+        data.clear();
+        if (tracker != null)
+            tracker.clear();
+        changedAll();
+    }
+
+    /**
+     * Drops everything cached for an entry, e.g. when a player leaves. The
+     * next read loads it again.
+     */
+    public void evict(String name) {
+        generation.incrementAndGet();
+        permissions.remove(name);
+        parents.remove(name);
+        data.remove(name);
+        if (tracker != null)
+            tracker.forget(name);
+        changed(name);
+    }
+
+    /**
+     * Whether the write-behind queue still holds writes to the entry. Until
+     * they are committed, evicting it would reload it without them.
+     */
+    boolean writesQueued(String name) {
+        WriteBehindQueue queue = SqlStorage.getWriteQueue();
+        Storage wrapped = getWrapped();
+        if (queue == null || !(wrapped instanceof SqlEntryStorage))
+            return false;
+        Integer id = ((SqlEntryStorage) wrapped).getCachedId(name);
+        return id != null && queue.isPending(id);
+    }
+
+    /**
+     * Names with anything cached.
+     */
+    Set<String> cachedNames() {
+        Set<String> names = new HashSet<String>(permissions.keySet());
+        names.addAll(parents.keySet());
+        names.addAll(data.keySet());
+        return names;
+    }
+
+    private void touch(String name) {
+        if (tracker != null)
+            tracker.touch(name);
+    }
+
+    void setResolver(EffectivePermissions resolver) {
+        this.resolver = resolver;
+    }
+
+    private void changed(String name) {
+        EffectivePermissions r = resolver;
+        if (r != null)
+            r.changed(getWorld(), getType(), name);
+    }
+
+    private void changedAll() {
+        EffectivePermissions r = resolver;
+        if (r != null)
+            r.clear();
+    }
+
+    /**
+     * Cached permissions of an entry, read-only, or null if they would need a
+     * load.
+     */
+    Set<String> peekPermissions(String name) {
+        Set<String> perms = permissions.get(name);
+        if (perms == null)
+            return null;
+        touch(name);
+        return Collections.unmodifiableSet(perms);
+    }
+
+    /**
+     * A copy of the cached parents of an entry, or null if they would need a
+     * load.
+     */
+    LinkedHashSet<GroupWorld> peekParents(String name) {
+        LinkedHashSet<GroupWorld> entryParents = parents.get(name);
+        if (entryParents == null)
+            return null;
+        touch(name);
+        return new LinkedHashSet<GroupWorld>(entryParents);
+    }
+
+    /**
+     * Cached value of a data path ({@link DataValue#NONE} if known to be
+     * absent), or null if it would need a load.
+     */
+    DataValue peekData(String name, String path) {
+        EntryData entryData = data.get(name);
+        DataValue value = entryData == null ? null : entryData.get(path);
+        if (value != null)
+            touch(name);
+        return value;
+    }
+
+    private DataValue dataValue(String name, String path) {
+        EntryData entryData = entryData(name);
+        DataValue value = entryData.get(path);
+        return value != null ? value : loadData(name, path);
+    }
+
+    private void putData(String name, String path, DataValue value) {
+        while (true) {
+            EntryData old = entryData(name);
+            if (data.replace(name, old, old.with(path, value)))
+                break;
+        }
+    }
+
+    /**
+     * The cached data of an entry, loading all of it in one query the first
+     * time when the wrapped storage supports that.
+     */
+    private EntryData entryData(final String name) {
+        touch(name);
+        EntryData entryData = data.get(name);
+        if (entryData == null) {
+            entryData = cast(loads.run(new LoadKey('d', name, null), new Callable<Object>() {
+                @Override
+                public Object call() {
+                    EntryData loaded = data.get(name);
+                    if (loaded == null) {
+                        long start = generation.get();
+                        Storage wrapped = getWrapped();
+                        if (wrapped instanceof SqlEntryStorage) {
+                            Map<String, DataValue> values = new HashMap<String, DataValue>();
+                            for (Map.Entry<String, String> entry : ((SqlEntryStorage) wrapped).getAllData(name).entrySet()) {
+                                values.put(entry.getKey(), new DataValue(entry.getValue()));
+                            }
+                            loaded = new EntryData(values, true);
+                        } else {
+                            loaded = new EntryData(new HashMap<String, DataValue>(), false);
+                        }
+                        loaded = keep(data, name, loaded, start);
+                    }
+                    return loaded;
+                }
+            }));
+        }
+        return entryData;
+    }
+
+    /**
+     * Loads one path of an entry that isn't bulk loaded. A value written
+     * while the load ran wins over the loaded one.
+     */
+    private DataValue loadData(final String name, final String path) {
+        return cast(loads.run(new LoadKey('s', name, path), new Callable<Object>() {
+            @Override
+            public Object call() {
+                long start = generation.get();
+                String raw = getWrapped().getString(name, path);
+                DataValue loaded = raw == null ? DataValue.NONE : new DataValue(raw);
+                while (true) {
+                    EntryData old = data.get(name);
+                    if (old == null || generation.get() != start)
+                        return loaded; // Evicted or invalidated meanwhile; don't resurrect it
+                    DataValue current = old.values.get(path);
+                    if (current != null)
+                        return current;
+                    EntryData updated = old.with(path, loaded);
+                    if (data.replace(name, old, updated)) {
+                        if (generation.get() != start)
+                            data.remove(name, updated);
+                        return loaded;
+                    }
+                }
+            }
+        }));
+    }
+
+    /**
+     * Caches a loaded value unless something was invalidated since the load
+     * began, the way {@link EffectivePermissions} keeps flattened sets.
+     * Returns the value the cache holds, or the loaded one if none.
+     */
+    private <V> V keep(ConcurrentMap<String, V> map, String name, V loaded, long start) {
+        if (generation.get() != start)
+            return loaded;
+        V raced = map.putIfAbsent(name, loaded);
+        if (raced != null)
+            return raced;
+        // An invalidation between the check and the put must not be lost
+        if (generation.get() != start)
+            map.remove(name, loaded);
+        return loaded;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object o) {
+        return (T) o;
+    }
+
     protected abstract Storage getWrapped();
 }
@@ -8,6 +8,11 @@ public class CachedUserStorage extends CachedStorage implements UserStorage {
         this.wrapped = wrapped;
     }
 
+    public CachedUserStorage(UserStorage wrapped, int maxEntries, long expireAfterAccess) {
+        super(wrapped, maxEntries, expireAfterAccess);
+        this.wrapped = wrapped;
+    }
+
     @Override
     protected Storage getWrapped() {
         return wrapped;
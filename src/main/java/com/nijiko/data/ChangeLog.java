@@ -0,0 +1,249 @@
+package com.nijiko.data;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.nijiko.data.WriteBehindQueue.Write;
+import com.nijiko.permissions.EntryType;
+
+/**
+ * Cross-server cache invalidation. Every mutation appends a row to
+ * PrChangeLog naming the entry and what changed; a background thread on each
+ * server reads the rows other servers wrote since its last poll and drops
+ * exactly those entries from the registered caches.
+ * <p>
+ * Sequence numbers are handed out at insert but become visible at commit, so
+ * on MySQL a row can appear below one already read. Skipped numbers are kept
+ * as gaps and re-read on later polls until they fill or time out.
+ */
+final class ChangeLog implements Runnable {
+
+    static final byte PERMISSIONS = 1;
+    static final byte PARENTS = 2;
+    static final byte DATA = 3;
+    static final byte ENTRY = 4; // Deleted; drop everything
+
+    static final String changeAddText = "INSERT INTO PrChangeLog (entryid, kind, origin) VALUES (?,?,?);";
+    static final String changePollText = "SELECT seq, entryid, kind, origin FROM PrChangeLog WHERE seq > ? ORDER BY seq LIMIT 500;";
+    static final String changeGapText = "SELECT seq, entryid, kind, origin FROM PrChangeLog WHERE seq IN (%s) ORDER BY seq;";
+    static final String changeMaxText = "SELECT MAX(seq) FROM PrChangeLog;";
+    static final String changeMinText = "SELECT MIN(seq) FROM PrChangeLog;";
+    static final String changePruneText = "DELETE FROM PrChangeLog WHERE seq <= ?;";
+
+    private static final int pruneEvery = 150; // polls
+    private static final long gapTimeout = 60000L; // ms; longer than any transaction that logs a change
+    private static final int maxGaps = 1000;
+    private static final int gapChunk = 64;
+    // Gap lists are padded to one of these sizes, like SqlEntryStorage's bulk parent lookups
+    private static final int[] gapSizes = { 4, 16, gapChunk };
+    private static final String[] gapStatements = new String[gapSizes.length];
+
+    static {
+        for (int i = 0; i < gapSizes.length; i++) {
+            StringBuilder marks = new StringBuilder(gapSizes[i] * 2);
+            for (int j = 0; j < gapSizes[i]; j++) {
+                marks.append(j == 0 ? "?" : ",?");
+            }
+            gapStatements[i] = String.format(changeGapText, marks);
+        }
+    }
+
+    private final String origin = UUID.randomUUID().toString();
+    private final List<CachedStorage> caches = new CopyOnWriteArrayList<CachedStorage>();
+    private final long interval;
+    private final long retention;
+    private final Thread poller = new Thread(this, "Permissions SQL change poller");
+    private volatile boolean running = true;
+    private long lastSeq = 0;
+    // Skipped sequence numbers below lastSeq, and when they were first seen missing
+    private final TreeMap<Long, Long> gaps = new TreeMap<Long, Long>();
+
+    ChangeLog(long interval, long retention) {
+        this.interval = interval;
+        this.retention = retention;
+        poller.setDaemon(true);
+    }
+
+    void start() {
+        lastSeq = queryLong(changeMaxText);
+        poller.start();
+    }
+
+    void shutdown() {
+        running = false;
+        poller.interrupt();
+        try {
+            poller.join(5000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void register(CachedStorage cache) {
+        caches.add(cache);
+    }
+
+    /**
+     * The row recording a change, to be written along with the change itself.
+     * Repeated changes of one kind to one entry merge in the write-behind queue.
+     */
+    Write change(int entryid, byte kind) {
+        return new Write("c:" + entryid + ":" + kind, changeAddText, new Object[] { entryid, kind, origin });
+    }
+
+    @Override
+    public void run() {
+        int polls = 0;
+        while (running) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                while (poll() == 500)
+                    ;
+                if (++polls % pruneEvery == 0)
+                    prune();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Applies the next page of other servers' changes, and any rows that
+     * filled a gap since the last poll. Returns the row count of the page.
+     */
+    int poll() {
+        long now = System.currentTimeMillis();
+        // Rolled back, or pruned before it ever committed
+        for (Iterator<Long> iter = gaps.values().iterator(); iter.hasNext();) {
+            if (now - iter.next() > gapTimeout)
+                iter.remove();
+        }
+        if (!gaps.isEmpty())
+            fillGaps();
+        List<long[]> rows = fetch(changePollText, lastSeq);
+        if (!rows.isEmpty() && rows.get(0)[0] > lastSeq + 1 && lastSeq > 0 && fellBehind()) {
+            System.err.println("[Permissions] Fell behind the change log (at " + lastSeq + ", next is " + rows.get(0)[0] + "). Clearing caches.");
+            for (CachedStorage cache : caches) {
+                cache.invalidateAll();
+            }
+            gaps.clear();
+        }
+        for (long[] row : rows) {
+            for (long seq = Math.max(lastSeq + 1, row[0] - maxGaps); seq < row[0]; seq++) {
+                gaps.put(seq, now);
+            }
+            apply(row);
+            lastSeq = row[0];
+        }
+        while (gaps.size() > maxGaps)
+            gaps.pollFirstEntry();
+        return rows.size();
+    }
+
+    /**
+     * Reads the rows that filled a gap since the last poll, looking up only
+     * the missing sequence numbers rather than the range they span.
+     */
+    private void fillGaps() {
+        List<Long> missing = new ArrayList<Long>(gaps.keySet());
+        for (int start = 0; start < missing.size(); start += gapChunk) {
+            List<Long> chunk = missing.subList(start, Math.min(missing.size(), start + gapChunk));
+            int size = 0;
+            while (gapSizes[size] < chunk.size())
+                size++;
+            long[] seqs = new long[gapSizes[size]];
+            // Unused placeholders repeat the last number
+            for (int i = 0; i < seqs.length; i++) {
+                seqs[i] = chunk.get(Math.min(i, chunk.size() - 1));
+            }
+            for (long[] row : fetch(gapStatements[size], seqs)) {
+                // Committed after a later row we already read
+                if (gaps.remove(row[0]) != null)
+                    apply(row);
+            }
+        }
+    }
+
+    private List<long[]> fetch(String statement, final long... bounds) {
+        final List<long[]> rows = new ArrayList<long[]>();
+        SqlStorage.query(statement, new RowHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                for (int i = 0; i < bounds.length; i++) {
+                    stmt.setLong(i + 1, bounds[i]);
+                }
+            }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                // Our own rows are read too, so lastSeq also moves past them
+                boolean own = origin.equals(rs.getString(4));
+                rows.add(new long[] { rs.getLong(1), own ? -1 : rs.getInt(2), rs.getByte(3) });
+                return true;
+            }
+        });
+        return rows;
+    }
+
+    private void apply(long[] row) {
+        if (row[1] != -1)
+            invalidate((int) row[1], (byte) row[2]);
+    }
+
+    private void invalidate(int entryid, byte kind) {
+        IdDictionary dictionary = SqlStorage.getDictionary();
+        IdDictionary.Entry entry = dictionary.getEntry(entryid);
+        if (entry == null)
+            return; // Never loaded here, so nothing can be cached
+        String world = dictionary.getWorldName(entry.worldid);
+        EntryType type = entry.group ? EntryType.GROUP : EntryType.USER;
+        for (CachedStorage cache : caches) {
+            if (cache.getType() == type && cache.getWorld().equals(world))
+                cache.invalidate(entry.name, kind);
+        }
+        if (kind == ENTRY)
+            dictionary.removeEntry(entryid);
+    }
+
+    /**
+     * Whether rows after lastSeq were pruned before this server read them.
+     * Pruning keeps the newest rows, so it can only have reached past lastSeq
+     * if more than that many were logged since; a younger hole is rolled-back
+     * inserts.
+     */
+    private boolean fellBehind() {
+        return queryLong(changeMinText) > lastSeq + 1 && queryLong(changeMaxText) - retention > lastSeq;
+    }
+
+    /**
+     * Trims the table to the newest rows; see {@link #fellBehind()}.
+     */
+    private void prune() {
+        long max = queryLong(changeMaxText);
+        if (max - retention > 0)
+            SqlStorage.runUpdate(changePruneText, new Object[] { max - retention });
+    }
+
+    private static long queryLong(String statement) {
+        final long[] value = { 0 };
+        SqlStorage.query(statement, new RowHandler() {
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                value[0] = rs.getLong(1);
+                return false;
+            }
+        });
+        return value[0];
+    }
+}
@@ -1,5 +1,6 @@
 package com.nijiko.data;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -16,143 +17,342 @@ import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 
 public class ConnectionPool {
     private final BlockingQueue<WrappedConnection> queue;
+    private final Set<WrappedConnection> leased = Collections.newSetFromMap(new ConcurrentHashMap<WrappedConnection, Boolean>());
+    private final Semaphore leases;
     private final DataSource dbSource;
+    private final Settings settings;
     private final Thread reaperThread = new Thread(new Reaper());
     private volatile boolean isShutdown = false;
-    private static final AtomicInteger maxWrapCount = new AtomicInteger(0); // Used for testing purposes.
-    private static final AtomicInteger currentWrapCount = new AtomicInteger(0); // Used for testing purposes.
+    private final PoolMetrics metrics;
+    private ObjectName mbeanName;
+    private static final int statementCacheSize = 32; // Idle prepared statements kept per physical connection
 
-    private ConnectionPool(DataSource dbSource, int maxConnections) {
+    private ConnectionPool(DataSource dbSource, Settings settings) {
         this.dbSource = dbSource;
-        this.queue = new ArrayBlockingQueue<WrappedConnection>(maxConnections);
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<WrappedConnection>(settings.maxConnections);
+        // Every physical connection is backed by a permit, so leased + idle never exceeds maxConnections
+        this.leases = new Semaphore(settings.maxConnections, true);
+        this.metrics = new PoolMetrics(queue, leases, settings.maxConnections);
     }
-    
+
     public static ConnectionPool newInstance(DataSource dbSource, int maxConnections) {
-        ConnectionPool cp = new ConnectionPool(dbSource, maxConnections);
+        Settings settings = new Settings();
+        settings.maxConnections = maxConnections;
+        return newInstance(dbSource, settings);
+    }
+
+    public static ConnectionPool newInstance(DataSource dbSource, Settings settings) {
+        ConnectionPool cp = new ConnectionPool(dbSource, settings.validate());
+        cp.prefill();
+        cp.registerMBean();
         cp.reaperThread.start();
         return cp;
     }
 
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.nijiko.data:type=ConnectionPool,name=" + ObjectName.quote(settings.name));
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(metrics, name);
+            mbeanName = name;
+        } catch (Exception e) {
+            System.err.println("[Permissions] Unable to register connection pool MBean.");
+            e.printStackTrace();
+        }
+    }
+
+    private void unregisterMBean() {
+        if (mbeanName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        mbeanName = null;
+    }
+
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void prefill() {
+        int target = Math.min(settings.minIdle, settings.maxConnections);
+        for (int i = 0; i < target; i++) {
+            try {
+                if (!queue.offer(createNewConnection()))
+                    break;
+            } catch (SQLException e) {
+                System.err.println("[Permissions] Unable to prefill SQL connection pool.");
+                e.printStackTrace();
+                break;
+            }
+        }
+    }
+
     public Connection getConnection() throws SQLException {
+        if (isShutdown)
+            return null;
+        long start = System.nanoTime();
+        try {
+            if (!leases.tryAcquire(settings.acquireTimeout, TimeUnit.MILLISECONDS)) {
+                metrics.leaseTimedOut();
+                throw new SQLException("Timed out after " + settings.acquireTimeout + "ms waiting for one of " + settings.maxConnections + " pooled connections.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection.", e);
+        }
+
         WrappedConnection wrapConn;
-        while (true) {
-            if(isShutdown)
-                return null;
-            wrapConn = queue.poll();
-
-            if (wrapConn == null) {
-//                System.out.println("Creating new connection");
-                wrapConn = this.createNewConnection();
-            } else {
-                if (!isValid(wrapConn)) {
-//                    System.out.println("Invalid connection detected");
-                    continue;
+        boolean leased = false;
+        try {
+            while (true) {
+                if (isShutdown)
+                    return null;
+                wrapConn = queue.poll();
+
+                if (wrapConn == null) {
+//                    System.out.println("Creating new connection");
+                    wrapConn = this.createNewConnection();
+                } else if (wrapConn.needsValidation(settings.validationInterval)) {
+                    if (!isValid(wrapConn)) {
+//                        System.out.println("Invalid connection detected");
+                        wrapConn.destroy();
+                        continue;
+                    }
+                }
+
+                if (wrapConn.lease(settings.leakStackTraces)) {
+//                    System.out.println("Connection leased");
+                    leased = true;
+                    this.leased.add(wrapConn);
+                    metrics.leased(System.nanoTime() - start);
+                    break;
                 }
             }
-            
-            if(wrapConn.lease()) {
-//                System.out.println("Connection leased");
-                break;
-            }
+        } finally {
+            if (!leased)
+                leases.release();
         }
         return wrapConn;
     }
 
     private boolean isValid(WrappedConnection wrapConn) {
         try {
-            return wrapConn.isValid(1);
+            if (wrapConn.validate(1))
+                return true;
         } catch (SQLException e) {
             e.printStackTrace();
-            return false;
+        }
+        metrics.validationFailed();
+        return false;
+    }
+
+    private boolean isClosed(WrappedConnection wrapConn) {
+        try {
+            return wrapConn.isClosed();
+        } catch (SQLException e) {
+            return true;
         }
     }
 
     private WrappedConnection createNewConnection() throws SQLException {
-        WrappedConnection w = new WrappedConnection(dbSource.getConnection());
+        Connection physical = dbSource.getConnection();
+        if (!settings.initStatements.isEmpty()) {
+            try {
+                Statement s = physical.createStatement();
+                try {
+                    for (String sql : settings.initStatements)
+                        s.execute(sql);
+                } finally {
+                    s.close();
+                }
+            } catch (SQLException e) {
+                physical.close();
+                throw e;
+            }
+        }
+        WrappedConnection w = new WrappedConnection(physical);
+        metrics.connectionCreated();
         return w;
     }
 
     private void returnToPool(WrappedConnection wrapConn) {
         if(!wrapConn.expireLease())
             return;
-        if (!isShutdown && isValid(wrapConn) && queue.offer(wrapConn)) {
-//            System.out.println("Wrapper returned to pool");
-            return;
-        } else {
-//            System.out.println("Offer failed. Destroying wrapper");
-            wrapConn.destroy();
+        leased.remove(wrapConn);
+        metrics.returned();
+        try {
+            // Only a local check here; a round trip is paid on borrow once the validation window has passed
+            if (!isShutdown && !isClosed(wrapConn) && queue.offer(wrapConn)) {
+//                System.out.println("Wrapper returned to pool");
+                return;
+            } else {
+//                System.out.println("Offer failed. Destroying wrapper");
+                wrapConn.destroy();
+            }
+        } finally {
+            leases.release();
         }
     }
     
-    //TODO: Destroy active wrappers too
     public void closeAll() {
 //        System.out.println("Shutting down");
         isShutdown = true;
         reaperThread.interrupt();
+        unregisterMBean();
         List<WrappedConnection> wrappers = new ArrayList<WrappedConnection>(queue.size());
         queue.drainTo(wrappers);
         for(WrappedConnection wrap : wrappers) {
 //            System.out.println("Shutting down connection");
             wrap.destroy();
         }
+        for (WrappedConnection wrap : new ArrayList<WrappedConnection>(leased)) {
+            reclaim(wrap);
+        }
+    }
+
+    /**
+     * Takes a lease away from its holder and closes the physical connection.
+     * The holder's eventual close() becomes a no-op.
+     */
+    private void reclaim(WrappedConnection wrapConn) {
+        Thread holder = wrapConn.getOwner();
+        if (holder == null || !wrapConn.forceExpire(holder))
+            return;
+        leased.remove(wrapConn);
+        metrics.returned();
+        metrics.forciblyClosed();
+        System.err.println("[Permissions] Forcibly closing SQL connection still leased by thread '" + holder.getName() + "' for " + (System.currentTimeMillis() - wrapConn.getLeaseTime()) + "ms.");
+        wrapConn.destroy();
+        leases.release();
+    }
+
+    private void reportLeaks() {
+        if (settings.leakThreshold <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        for (WrappedConnection wrapConn : leased) {
+            Thread holder = wrapConn.getOwner();
+            if (holder == null || now - wrapConn.getLeaseTime() < settings.leakThreshold || !wrapConn.markLeakReported())
+                continue;
+            metrics.leakDetected();
+            System.err.println("[Permissions] Possible SQL connection leak: leased by thread '" + holder.getName() + "' for " + (now - wrapConn.getLeaseTime()) + "ms.");
+            Throwable trace = wrapConn.getLeaseTrace();
+            if (trace != null)
+                trace.printStackTrace();
+        }
     }
 
     private class WrappedConnection implements Connection {
 
         private final Connection conn;
+        private final StatementCache stmtCache = new StatementCache(statementCacheSize);
         private AtomicReference<Thread> owner = new AtomicReference<Thread>();
-        private long timeStamp = System.currentTimeMillis();
+        private final AtomicBoolean destroyed = new AtomicBoolean(false);
+        private final AtomicBoolean leakReported = new AtomicBoolean(false);
+        private volatile long leaseTime;
+        private volatile Throwable leaseTrace;
+        private volatile long timeStamp = System.currentTimeMillis();
+        private volatile long lastValidated = timeStamp;
 
         WrappedConnection(Connection conn) {
             this.conn = conn;
-
-            for (;;) {
-                int max = ConnectionPool.maxWrapCount.get();
-                int current = ConnectionPool.currentWrapCount.incrementAndGet();
-                if (current > max) {
-                    if (ConnectionPool.maxWrapCount.compareAndSet(max, current))
-                        break;
-                }
-            }
         }
 
         protected void destroy() {
 //            System.out.println("Destroying wrapper");
+            if (!destroyed.compareAndSet(false, true))
+                return;
+            stmtCache.clear();
             try {
                 conn.close();
             } catch (SQLException e) {
                 e.printStackTrace();
             }
-            ConnectionPool.currentWrapCount.decrementAndGet();
+            metrics.connectionDestroyed();
         }
 
-        public boolean lease() {
+        public boolean lease(boolean trace) {
             if (owner.compareAndSet(null, Thread.currentThread())) {
                 timeStamp = System.currentTimeMillis();
+                leaseTime = timeStamp;
+                leaseTrace = trace ? new Throwable("Connection leased here") : null;
+                leakReported.set(false);
                 return true;
             } else
                 return false;
         }
 
+        public Thread getOwner() {
+            return owner.get();
+        }
+
+        public long getLeaseTime() {
+            return leaseTime;
+        }
+
+        public Throwable getLeaseTrace() {
+            return leaseTrace;
+        }
+
+        protected boolean markLeakReported() {
+            return leakReported.compareAndSet(false, true);
+        }
+
+        protected boolean forceExpire(Thread holder) {
+            return owner.compareAndSet(holder, null);
+        }
+
         public long getLastUse() {
             return timeStamp;
         }
 
         protected boolean expireLease() {
-            return owner.compareAndSet(Thread.currentThread(), null);
+            if (owner.compareAndSet(Thread.currentThread(), null)) {
+                timeStamp = System.currentTimeMillis();
+                return true;
+            }
+            return false;
+        }
+
+        public long getLastValidated() {
+            return lastValidated;
+        }
+
+        protected boolean needsValidation(long window) {
+            return System.currentTimeMillis() - lastValidated >= window;
+        }
+
+        protected boolean validate(int timeout) throws SQLException {
+            if (isValid(timeout)) {
+                lastValidated = System.currentTimeMillis();
+                return true;
+            }
+            return false;
         }
 
         @Override
@@ -187,7 +387,10 @@ public class ConnectionPool {
 
         @Override
         public PreparedStatement prepareStatement(String sql) throws SQLException {
-            return conn.prepareStatement(sql);
+            WrappedStatement stmt = stmtCache.take(sql);
+            if (stmt == null)
+                stmt = new WrappedStatement(conn.prepareStatement(sql), sql, this, stmtCache);
+            return stmt;
         }
 
         @Override
@@ -342,7 +545,11 @@ public class ConnectionPool {
 
         @Override
         public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
-            return conn.prepareStatement(sql, autoGeneratedKeys);
+            String key = autoGeneratedKeys + ":" + sql;
+            WrappedStatement stmt = stmtCache.take(key);
+            if (stmt == null)
+                stmt = new WrappedStatement(conn.prepareStatement(sql, autoGeneratedKeys), key, this, stmtCache);
+            return stmt;
         }
 
         @Override
@@ -407,46 +614,112 @@ public class ConnectionPool {
 
     }
 
-    private class Reaper implements Runnable {
+    public static class Settings {
+        public String name = "default";
+        public int maxConnections = 10;
+        public int minIdle = 1;
+        public long acquireTimeout = 10000L; // ms
+        public long validationInterval = 30L * 1000L; // ms an idle connection is trusted without a round trip
+        public long idleTimeout = 30L * 60L * 1000L; // ms before an idle connection above minIdle is closed
+        public long keepaliveInterval = 5L * 60L * 1000L; // ms between reaper pings of idle connections
+        public long reaperInterval = 60L * 1000L; // ms
+        public long leakThreshold = 60L * 1000L; // ms a lease may be held before it is reported, 0 to disable
+        public boolean leakStackTraces = false; // Record where each lease was taken, for leak reports
+        public List<String> initStatements = new ArrayList<String>(); // Run once on every new physical connection
+
+        public Settings copy() {
+            Settings copy = new Settings();
+            copy.name = name;
+            copy.maxConnections = maxConnections;
+            copy.minIdle = minIdle;
+            copy.acquireTimeout = acquireTimeout;
+            copy.validationInterval = validationInterval;
+            copy.idleTimeout = idleTimeout;
+            copy.keepaliveInterval = keepaliveInterval;
+            copy.reaperInterval = reaperInterval;
+            copy.leakThreshold = leakThreshold;
+            copy.leakStackTraces = leakStackTraces;
+            copy.initStatements = new ArrayList<String>(initStatements);
+            return copy;
+        }
+
+        Settings validate() {
+            if (maxConnections < 1)
+                maxConnections = 1;
+            if (minIdle < 0)
+                minIdle = 0;
+            if (minIdle > maxConnections)
+                minIdle = maxConnections;
+            if (acquireTimeout < 0)
+                acquireTimeout = 0;
+            if (validationInterval < 0)
+                validationInterval = 0;
+            if (reaperInterval < 1000L)
+                reaperInterval = 1000L;
+            return this;
+        }
+    }
 
-        private static final long delay = 5L * 60L * 1000L;
-        private static final long timeout = 30L * 60L * 1000L;
+    private class Reaper implements Runnable {
 
         @Override
         public void run() {
-            WrappedConnection wrapConn;
             for (;;) {
                 if(isShutdown) {
 //                    System.out.println("Stopping due to shutdown");
                     return;
                 }
                 try {
-                    Thread.sleep(delay);
+                    Thread.sleep(settings.reaperInterval);
                 } catch (InterruptedException e) {
 //                    System.out.println("Interrupted while sleeping");
                     return;
                 }
                 
 //                System.out.println("Starting reaping.");
-                
-                for (;;) {
-                    try {
-                        wrapConn = queue.poll(5, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException e) {
-//                        System.out.println("Interrupted while polling queue");
+                reap();
+                topUp();
+                reportLeaks();
+            }
+        }
+
+        private void reap() {
+            long now = System.currentTimeMillis();
+            int idle = queue.size();
+            // Walk a snapshot; a connection is only touched after removing it, so borrowers never see it mid-check
+            for (Object o : queue.toArray()) {
+                if (isShutdown)
+                    return;
+                WrappedConnection wrapConn = (WrappedConnection) o;
+                boolean expired = now - wrapConn.getLastUse() >= settings.idleTimeout && idle > settings.minIdle;
+                boolean stale = now - wrapConn.getLastValidated() >= settings.keepaliveInterval;
+                if (!expired && !stale)
+                    continue;
+                if (!queue.remove(wrapConn))
+                    continue; // Borrowed in the meantime
+                if (expired) {
+                    idle--;
+                    metrics.evicted();
+                    wrapConn.destroy();
+                } else if (!isValid(wrapConn) || !queue.offer(wrapConn)) {
+                    idle--;
+                    wrapConn.destroy();
+                }
+            }
+        }
+
+        private void topUp() {
+            while (!isShutdown && queue.size() < settings.minIdle && queue.size() + settings.maxConnections - leases.availablePermits() < settings.maxConnections) {
+                try {
+                    WrappedConnection wrapConn = createNewConnection();
+                    if (!queue.offer(wrapConn)) {
+                        wrapConn.destroy();
                         return;
                     }
-                    
-                    if (wrapConn == null) {
-                        break;
-                    } else {
-                        if (isValid(wrapConn) && (wrapConn.getLastUse() + timeout) < System.currentTimeMillis())
-                            queue.add(wrapConn);
-                        else
-                            wrapConn.destroy();
-                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    return;
                 }
-                
             }
         }
 
@@ -0,0 +1,96 @@
+package com.nijiko.data;
+
+/**
+ * One PrData value as cached by CachedStorage. The database holds strings;
+ * each typed reading is parsed the first time it is asked for and kept, so
+ * one cached value answers getString, getInt, getDouble and getBool.
+ */
+final class DataValue {
+
+    // A path with no value
+    static final DataValue NONE = new DataValue(null);
+
+    private static final Object UNPARSED = new Object();
+
+    private final String raw;
+    // Parsed readings, or UNPARSED. Racing threads may both parse; the results are equal and immutable
+    private Object asInt = UNPARSED;
+    private Object asDouble = UNPARSED;
+    private Object asBool = UNPARSED;
+
+    DataValue(String raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * The value setData stores for an object, with its own type already filled
+     * in.
+     */
+    static DataValue of(Object o) {
+        DataValue value = new DataValue(o.toString());
+        if (o instanceof Integer)
+            value.asInt = o;
+        else if (o instanceof Double)
+            value.asDouble = o;
+        else if (o instanceof Boolean)
+            value.asBool = o;
+        return value;
+    }
+
+    String asString() {
+        return raw;
+    }
+
+    Integer asInt() {
+        Object o = asInt;
+        if (o == UNPARSED)
+            asInt = o = toInt(raw);
+        return (Integer) o;
+    }
+
+    Double asDouble() {
+        Object o = asDouble;
+        if (o == UNPARSED)
+            asDouble = o = toDouble(raw);
+        return (Double) o;
+    }
+
+    Boolean asBool() {
+        Object o = asBool;
+        if (o == UNPARSED)
+            asBool = o = toBool(raw);
+        return (Boolean) o;
+    }
+
+    static Integer toInt(String raw) {
+        if (raw == null)
+            return null;
+        try {
+            return Integer.valueOf(raw);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static Double toDouble(String raw) {
+        if (raw == null)
+            return null;
+        try {
+            return Double.valueOf(raw);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static Boolean toBool(String raw) {
+        if (raw == null)
+            return null;
+        if (raw.equalsIgnoreCase("true")) {
+            return true;
+        } else if (raw.equalsIgnoreCase("false")) {
+            return false;
+        } else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.nijiko.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads that run storage calls for {@link AsyncStorage}. Reads get one
+ * thread per pooled read connection, so a burst never queues on the pool
+ * itself. Writes run on a single thread in submission order, so two async
+ * writes to the same entry can't overtake each other. Both queues are
+ * bounded; a full queue rejects the call rather than growing without limit.
+ * <p>
+ * Writes may be keyed by the entry they change. A read of an entry with a
+ * keyed write still queued runs on the writer thread behind it, so it sees
+ * the write. Unkeyed reads (entry lists, tracks) can still run ahead of a
+ * queued write.
+ */
+final class DbExecutor {
+
+    private final ThreadPoolExecutor reads;
+    private final ThreadPoolExecutor writes;
+    // Keyed writes submitted and not yet finished, per key
+    private final Map<String, Integer> pendingWrites = new HashMap<String, Integer>();
+
+    DbExecutor(int readThreads, int queueSize) {
+        reads = new ThreadPoolExecutor(readThreads, readThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new Factory("Permissions SQL reader"));
+        reads.allowCoreThreadTimeOut(true);
+        writes = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new Factory("Permissions SQL async writer"));
+        writes.allowCoreThreadTimeOut(true);
+    }
+
+    <T> Future<T> read(Callable<T> call) {
+        return reads.submit(call);
+    }
+
+    <T> Future<T> read(String key, Callable<T> call) {
+        return isWriting(key) ? writes.submit(call) : reads.submit(call);
+    }
+
+    <T> Future<T> write(Callable<T> call) {
+        return writes.submit(call);
+    }
+
+    <T> Future<T> write(final String key, final Callable<T> call) {
+        begin(key);
+        try {
+            return writes.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        return call.call();
+                    } finally {
+                        end(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            end(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Whether a write with this key is queued or running.
+     */
+    synchronized boolean isWriting(String key) {
+        return pendingWrites.containsKey(key);
+    }
+
+    private synchronized void begin(String key) {
+        Integer count = pendingWrites.get(key);
+        pendingWrites.put(key, count == null ? 1 : count + 1);
+    }
+
+    private synchronized void end(String key) {
+        Integer count = pendingWrites.get(key);
+        if (count == null || count <= 1)
+            pendingWrites.remove(key);
+        else
+            pendingWrites.put(key, count - 1);
+    }
+
+    /**
+     * Stops accepting calls and waits up to the timeout for queued ones.
+     */
+    void shutdown(long timeout) {
+        reads.shutdown();
+        writes.shutdown();
+        try {
+            if (!writes.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+                System.err.println("[Permissions] " + writes.getQueue().size() + " async writes were still queued at shutdown.");
+            reads.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reads.shutdownNow();
+        writes.shutdownNow();
+    }
+
+    private static final class Factory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        Factory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
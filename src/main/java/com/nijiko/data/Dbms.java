@@ -0,0 +1,101 @@
+package com.nijiko.data;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+
+import org.sqlite.SQLiteDataSource;
+
+import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
+
+enum Dbms {
+
+    SQLITE("org.sqlite.JDBC"), MYSQL("com.mysql.jdbc.Driver");
+    private final String driver;
+
+    Dbms(String driverClass) {
+        this.driver = driverClass;
+    }
+
+    public String getDriver() {
+        return driver;
+    }
+
+    public DataSource getSource(String username, String password, String url) {
+        return getSource(username, password, url, new TuningProfile());
+    }
+
+    public DataSource getSource(String username, String password, String url, TuningProfile tuning) {
+        switch (this) {
+        case MYSQL:
+            MysqlDataSource mds = new MysqlDataSource();
+            mds.setUser(username);
+            mds.setPassword(password);
+            mds.setUrl(url);
+            mds.setCachePreparedStatements(true);
+            mds.setPreparedStatementCacheSize(tuning.preparedStatementCacheSize);
+            mds.setUseServerPrepStmts(true);
+            // mds.setPreparedStatementCacheSqlLimit(308);
+            mds.setRewriteBatchedStatements(tuning.rewriteBatchedStatements);
+            mds.setUseLocalSessionState(tuning.useLocalSessionState);
+            mds.setCacheServerConfiguration(tuning.cacheServerConfiguration);
+            mds.setConnectTimeout(tuning.connectTimeout);
+            mds.setSocketTimeout(tuning.socketTimeout);
+            return mds;
+        default:
+        case SQLITE:
+            final Integer busyTimeout = tuning.busyTimeout;
+            SQLiteDataSource sds = new SQLiteDataSource() {
+                @Override
+                public Connection getConnection(String username, String password) throws SQLException {
+                    Connection conn = super.getConnection(username, password);
+                    if (busyTimeout != null)
+                        setBusyTimeout(conn, busyTimeout);
+                    return conn;
+                }
+            };
+            sds.setUrl(url);
+            sds.setEnforceForeinKeys(true);
+            return sds;
+        }
+    }
+
+    /**
+     * sqlite-jdbc 3.7.2 has no busy timeout setting; a statement's query
+     * timeout sets it for the whole connection instead. Done before the
+     * pragmas run, so a locked database doesn't fail them straight away.
+     */
+    private static void setBusyTimeout(Connection conn, int millis) throws SQLException {
+        try {
+            Statement s = conn.createStatement();
+            s.setQueryTimeout((millis + 999) / 1000);
+            s.close();
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    public DataSource getReadOnlySource(String username, String password, String url, TuningProfile tuning) {
+        DataSource source = getSource(username, password, url, tuning);
+        if (this == SQLITE) {
+            ((SQLiteDataSource) source).setReadOnly(true);
+        }
+        return source;
+    }
+
+    /**
+     * Statements run on every new physical connection.
+     */
+    public List<String> getInitStatements(TuningProfile tuning, boolean readOnly, boolean wal) {
+        switch (this) {
+        case SQLITE:
+            return tuning.getSqlitePragmas(readOnly, wal);
+        default:
+            return new ArrayList<String>(0);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.nijiko.data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.nijiko.permissions.EntryType;
+
+/**
+ * Flattened permissions of users and groups, across worlds. An entry's
+ * flattened set holds its own permissions followed by those of each parent,
+ * in parent order; a permission is left out when a nearer level already
+ * decides it, through the node itself, its negation or a wildcard. The sets are {@link PermissionSet}s, so a
+ * check, wildcards included, costs one step per node segment.
+ * <p>
+ * Results are kept until the entry, or a group it inherits from, changes
+ * through one of the registered caches (or is dropped from one by the change
+ * log). A change invalidates the changed entry and everything that inherits
+ * from it, nothing else.
+ */
+public final class EffectivePermissions {
+
+    private static final class Node {
+        final String world;
+        final boolean group;
+        final String name;
+
+        Node(String world, boolean group, String name) {
+            this.world = world;
+            this.group = group;
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            return (world.hashCode() * 31 + name.hashCode()) * 2 + (group ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node))
+                return false;
+            Node other = (Node) o;
+            return group == other.group && world.equals(other.world) && name.equals(other.name);
+        }
+    }
+
+    private final ConcurrentMap<String, CachedStorage> userCaches = new ConcurrentHashMap<String, CachedStorage>();
+    private final ConcurrentMap<String, CachedStorage> groupCaches = new ConcurrentHashMap<String, CachedStorage>();
+    private final ConcurrentMap<Node, PermissionSet> flattened = new ConcurrentHashMap<Node, PermissionSet>();
+    // Reverse inheritance: each group maps to the entries whose flattened set was built from it
+    private final ConcurrentMap<Node, Set<Node>> dependents = new ConcurrentHashMap<Node, Set<Node>>();
+    // The parents each entry was last resolved with, so an invalidated entry can leave their dependents
+    private final ConcurrentMap<Node, List<Node>> sources = new ConcurrentHashMap<Node, List<Node>>();
+    // Bumped by every invalidation, so a result computed across one isn't kept
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Resolves through this cache for its world and type, and follows its
+     * changes. Caches for worlds that were never registered are created on
+     * first use.
+     */
+    public void register(CachedStorage cache) {
+        caches(cache.getType() == EntryType.GROUP).put(cache.getWorld(), cache);
+        cache.setResolver(this);
+    }
+
+    public boolean has(String world, String user, String permission) {
+        return flatten(new Node(world, false, user)).has(permission);
+    }
+
+    /**
+     * The flattened permissions of an entry. The returned set is read-only.
+     */
+    public Set<String> getPermissions(String world, EntryType type, String name) {
+        return Collections.unmodifiableSet(flatten(new Node(world, type == EntryType.GROUP, name)));
+    }
+
+    private PermissionSet flatten(Node node) {
+        PermissionSet perms = flattened.get(node);
+        if (perms != null)
+            return perms;
+        long start = generation.get();
+        boolean[] cyclic = { false };
+        perms = resolve(node, new HashSet<Node>(), start, cyclic);
+        if (!cyclic[0])
+            keep(node, perms, start);
+        return perms;
+    }
+
+    private PermissionSet resolve(Node node, Set<Node> path, long start, boolean[] cyclic) {
+        PermissionSet cached = flattened.get(node);
+        if (cached != null)
+            return cached;
+        if (!path.add(node)) {
+            // Inheritance loop; the result depends on where the walk entered it, so nothing on it is kept
+            cyclic[0] = true;
+            return new PermissionSet();
+        }
+        CachedStorage cache = cache(node.world, node.group);
+        PermissionSet perms = new PermissionSet();
+        perms.addAll(cache.getPermissions(node.name));
+        List<Node> parents = new ArrayList<Node>();
+        for (GroupWorld gw : cache.parentView(node.name)) {
+            Node parent = new Node(gw.getWorld(), true, gw.getName());
+            parents.add(parent);
+            addDependent(parent, node);
+            boolean before = cyclic[0];
+            cyclic[0] = false;
+            PermissionSet parentPerms = resolve(parent, path, start, cyclic);
+            if (!cyclic[0] && parentPerms != flattened.get(parent))
+                keep(parent, parentPerms, start);
+            cyclic[0] |= before;
+            merge(perms, parentPerms);
+        }
+        sources.put(node, parents);
+        path.remove(node);
+        return perms;
+    }
+
+    /**
+     * Adds the permissions of a farther level that the nearer ones leave
+     * undecided. All are checked before any is added, so the level's own
+     * wildcards and negations still combine.
+     */
+    private static void merge(PermissionSet perms, Set<String> level) {
+        List<String> undecided = new ArrayList<String>(level.size());
+        for (String perm : level) {
+            if (perms.check(perm.startsWith("-") ? perm.substring(1) : perm) == null)
+                undecided.add(perm);
+        }
+        perms.addAll(undecided);
+    }
+
+    /**
+     * Caches a result unless something was invalidated since the walk began.
+     */
+    private void keep(Node node, PermissionSet perms, long start) {
+        if (generation.get() != start)
+            return;
+        flattened.put(node, perms);
+        // An invalidation between the check and the put must not be lost
+        if (generation.get() != start)
+            flattened.remove(node, perms);
+    }
+
+    private void addDependent(Node parent, Node child) {
+        Set<Node> children = dependents.get(parent);
+        if (children == null) {
+            children = Collections.newSetFromMap(new ConcurrentHashMap<Node, Boolean>());
+            Set<Node> raced = dependents.putIfAbsent(parent, children);
+            if (raced != null)
+                children = raced;
+        }
+        children.add(child);
+    }
+
+    /**
+     * Evicts a user from the cache of every world, e.g. when the player
+     * leaves. Their flattened sets go with it. A cache with writes to the
+     * user still queued is evicted from the async writer thread once they
+     * are committed, so the next load doesn't miss them and the caller never
+     * waits for the database.
+     */
+    public void evictUser(final String name) {
+        for (final CachedStorage cache : userCaches.values()) {
+            if (!cache.writesQueued(name)) {
+                cache.evict(name);
+                continue;
+            }
+            DbExecutor executor = SqlStorage.getExecutor();
+            if (executor == null)
+                continue;
+            try {
+                executor.write(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        WriteBehindQueue queue = SqlStorage.getWriteQueue();
+                        if (queue != null)
+                            queue.flush();
+                        // Writes made since the user left keep the entry for the tracker to evict later
+                        if (!cache.writesQueued(name))
+                            cache.evict(name);
+                        return null;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Busy; the entry stays cached
+            }
+        }
+    }
+
+    /**
+     * Called by a registered cache after an entry's permissions or parents
+     * changed, or were dropped.
+     */
+    void changed(String world, EntryType type, String name) {
+        generation.incrementAndGet();
+        Deque<Node> pending = new ArrayDeque<Node>();
+        Set<Node> seen = new HashSet<Node>();
+        pending.add(new Node(world, type == EntryType.GROUP, name));
+        while (!pending.isEmpty()) {
+            Node node = pending.poll();
+            if (!seen.add(node))
+                continue;
+            flattened.remove(node);
+            Set<Node> children = dependents.remove(node);
+            if (children != null)
+                pending.addAll(children);
+            List<Node> parents = sources.remove(node);
+            if (parents != null) {
+                for (Node parent : parents) {
+                    Set<Node> siblings = dependents.get(parent);
+                    if (siblings != null)
+                        siblings.remove(node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by SqlEntryStorage after a write that went past the caches, when
+     * permissions.storage.cache is off, and by the write-behind queue for a
+     * write that failed. The registered caches drop the entry.
+     */
+    void written(String world, EntryType type, String name, byte kind) {
+        CachedStorage cache = caches(type == EntryType.GROUP).get(world);
+        if (cache != null)
+            cache.invalidate(name, kind);
+    }
+
+    void clear() {
+        generation.incrementAndGet();
+        flattened.clear();
+        dependents.clear();
+        sources.clear();
+    }
+
+    /**
+     * Forgets the registered caches as well, for when the storages close.
+     */
+    void reset() {
+        userCaches.clear();
+        groupCaches.clear();
+        clear();
+    }
+
+    private CachedStorage cache(String world, boolean group) {
+        CachedStorage cache = caches(group).get(world);
+        if (cache == null) {
+            SqlStorage.Settings settings = SqlStorage.getSettings();
+            CachedStorage created = group ? new CachedGroupStorage(SqlStorage.getGroupStorage(world)) : new CachedUserStorage(SqlStorage.getUserStorage(world), settings.userCacheMaxEntries, settings.userCacheExpireAfterAccess);
+            cache = caches(group).putIfAbsent(world, created);
+            if (cache == null) {
+                cache = created;
+                cache.setResolver(this);
+                ChangeLog changeLog = SqlStorage.getChangeLog();
+                if (changeLog != null)
+                    changeLog.register(cache);
+            }
+        }
+        return cache;
+    }
+
+    private ConcurrentMap<String, CachedStorage> caches(boolean group) {
+        return group ? groupCaches : userCaches;
+    }
+}
@@ -0,0 +1,328 @@
+package com.nijiko.data;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Two-way id/name dictionary for PrWorlds and PrEntries. It is loaded in bulk
+ * at init, and SqlStorage keeps it current as worlds and entries are created
+ * or deleted, so translating ids to names never touches the database.
+ * <p>
+ * Reads take no locks. Every table is copy-on-write: writers serialize on the
+ * dictionary, copy the one map (or shard) they change and publish the copy,
+ * so readers always see a complete map. Entries are sharded by id and names
+ * by hash, which keeps the copy a player login pays small.
+ * <p>
+ * Names are case-sensitive, like the PrWorlds and PrEntries columns (binary
+ * collation on MySQL since schema version 4). {@link #invalidate()} only
+ * marks the dictionary stale; the next lookup reloads it.
+ */
+final class IdDictionary {
+
+    static final String loadWorldsText = "SELECT worldid, worldname FROM PrWorlds;";
+    static final String loadEntriesText = "SELECT entryid, name, worldid, type FROM PrEntries;";
+    static final String loadSliceText = "SELECT entryid, name FROM PrEntries WHERE worldid = ? AND type = ?;";
+
+    private static final int SHARDS = 64; // power of two
+
+    static final class Entry {
+        final String name;
+        final int worldid;
+        final boolean group;
+
+        Entry(String name, int worldid, boolean group) {
+            this.name = name;
+            this.worldid = worldid;
+            this.group = group;
+        }
+    }
+
+    /**
+     * Names of one entry type in one world.
+     */
+    private static final class NameTable {
+        final AtomicReferenceArray<ObjectIntMap<String>> shards = new AtomicReferenceArray<ObjectIntMap<String>>(SHARDS);
+
+        NameTable() {
+            for (int i = 0; i < SHARDS; i++) {
+                shards.set(i, new ObjectIntMap<String>(-1));
+            }
+        }
+
+        static int shard(String name) {
+            int h = name.hashCode();
+            return (h ^ (h >>> 16)) & (SHARDS - 1);
+        }
+
+        int get(String name) {
+            return shards.get(shard(name)).get(name);
+        }
+    }
+
+    private volatile ObjectIntMap<String> worldIds = new ObjectIntMap<String>(-1);
+    private volatile IntObjectMap<String> worldNames = new IntObjectMap<String>();
+    private final AtomicReferenceArray<IntObjectMap<Entry>> entries = new AtomicReferenceArray<IntObjectMap<Entry>>(SHARDS);
+    // Name tables per world id, one registry for users and one for groups
+    private volatile IntObjectMap<NameTable> userNames = new IntObjectMap<NameTable>();
+    private volatile IntObjectMap<NameTable> groupNames = new IntObjectMap<NameTable>();
+
+    // Set while a private instance is being filled; it is then modified in place
+    private final boolean building;
+    private volatile boolean stale = false;
+    private final Object reloading = new Object();
+
+    IdDictionary() {
+        this(false);
+    }
+
+    private IdDictionary(boolean building) {
+        this.building = building;
+        for (int i = 0; i < SHARDS; i++) {
+            entries.set(i, new IntObjectMap<Entry>());
+        }
+    }
+
+    /**
+     * Replaces the contents with every world and entry in the database.
+     */
+    void load() {
+        final IdDictionary loaded = new IdDictionary(true);
+        SqlStorage.query(loadWorldsText, new RowHandler() {
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                loaded.putWorld(rs.getInt(1), rs.getString(2));
+                return true;
+            }
+        });
+        SqlStorage.query(loadEntriesText, new RowHandler() {
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                loaded.putEntry(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getByte(4) == 1);
+                return true;
+            }
+        });
+        synchronized (this) {
+            worldIds = loaded.worldIds;
+            worldNames = loaded.worldNames;
+            userNames = loaded.userNames;
+            groupNames = loaded.groupNames;
+            for (int i = 0; i < SHARDS; i++) {
+                entries.set(i, loaded.entries.get(i));
+            }
+        }
+    }
+
+    /**
+     * Has the next lookup reload everything, so repeated reload requests
+     * cost one load, and none if nothing is looked up in between.
+     */
+    void invalidate() {
+        stale = true;
+    }
+
+    private void refresh() {
+        if (!stale)
+            return;
+        synchronized (reloading) {
+            if (!stale)
+                return;
+            // Cleared first, so an invalidate during the load triggers another
+            stale = false;
+            load();
+        }
+    }
+
+    /**
+     * Re-reads the entries of one type in one world.
+     */
+    void loadEntries(final int worldid, final boolean group) {
+        final IdDictionary loaded = new IdDictionary(true);
+        SqlStorage.query(loadSliceText, new RowHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                stmt.setInt(1, worldid);
+                stmt.setByte(2, (byte) (group ? 1 : 0));
+            }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                loaded.putEntry(rs.getInt(1), rs.getString(2), worldid, group);
+                return true;
+            }
+        });
+        synchronized (this) {
+            // Copy each touched entry shard once, then publish the new table and shards together
+            List<IntObjectMap<Entry>> copies = new ArrayList<IntObjectMap<Entry>>(Collections.<IntObjectMap<Entry>> nCopies(SHARDS, null));
+            NameTable old = names(group).get(worldid);
+            if (old != null) {
+                for (int i = 0; i < SHARDS; i++) {
+                    for (String name : old.shards.get(i).keys()) {
+                        int id = old.shards.get(i).get(name);
+                        editShard(copies, id).remove(id);
+                    }
+                }
+            }
+            NameTable fresh = loaded.names(group).get(worldid);
+            if (fresh == null)
+                fresh = new NameTable();
+            for (int i = 0; i < SHARDS; i++) {
+                for (String name : fresh.shards.get(i).keys()) {
+                    int id = fresh.shards.get(i).get(name);
+                    editShard(copies, id).put(id, new Entry(name, worldid, group));
+                }
+            }
+            IntObjectMap<NameTable> registry = names(group).copy();
+            registry.put(worldid, fresh);
+            if (group)
+                groupNames = registry;
+            else
+                userNames = registry;
+            for (int i = 0; i < SHARDS; i++) {
+                if (copies.get(i) != null)
+                    entries.set(i, copies.get(i));
+            }
+        }
+    }
+
+    private IntObjectMap<Entry> editShard(List<IntObjectMap<Entry>> copies, int id) {
+        int i = id & (SHARDS - 1);
+        IntObjectMap<Entry> shard = copies.get(i);
+        if (shard == null) {
+            shard = entries.get(i).copy();
+            copies.set(i, shard);
+        }
+        return shard;
+    }
+
+    private <V> IntObjectMap<V> edit(IntObjectMap<V> map) {
+        return building ? map : map.copy();
+    }
+
+    private <K> ObjectIntMap<K> edit(ObjectIntMap<K> map) {
+        return building ? map : map.copy();
+    }
+
+    int getWorldId(String name) {
+        refresh();
+        return worldIds.get(name);
+    }
+
+    String getWorldName(int id) {
+        refresh();
+        return worldNames.get(id);
+    }
+
+    synchronized void putWorld(int id, String name) {
+        ObjectIntMap<String> ids = edit(worldIds);
+        ids.put(name, id);
+        IntObjectMap<String> names = edit(worldNames);
+        names.put(id, name);
+        worldIds = ids;
+        worldNames = names;
+    }
+
+    int getEntryId(int worldid, boolean group, String name) {
+        refresh();
+        NameTable table = names(group).get(worldid);
+        return table == null ? -1 : table.get(name);
+    }
+
+    Entry getEntry(int id) {
+        refresh();
+        return entries.get(id & (SHARDS - 1)).get(id);
+    }
+
+    synchronized void putEntry(int id, String name, int worldid, boolean group) {
+        // No refresh here: a reload would wait for this lock while we wait for it
+        Entry old = entries.get(id & (SHARDS - 1)).get(id);
+        if (old != null)
+            removeEntry(id);
+        NameTable table = names(group).get(worldid);
+        if (table == null) {
+            table = new NameTable();
+            IntObjectMap<NameTable> registry = edit(names(group));
+            registry.put(worldid, table);
+            if (group)
+                groupNames = registry;
+            else
+                userNames = registry;
+        }
+        int s = NameTable.shard(name);
+        ObjectIntMap<String> shard = edit(table.shards.get(s));
+        shard.put(name, id);
+        table.shards.set(s, shard);
+
+        IntObjectMap<Entry> entryShard = edit(entries.get(id & (SHARDS - 1)));
+        entryShard.put(id, new Entry(name, worldid, group));
+        entries.set(id & (SHARDS - 1), entryShard);
+    }
+
+    synchronized void removeEntry(int id) {
+        IntObjectMap<Entry> entryShard = edit(entries.get(id & (SHARDS - 1)));
+        Entry e = entryShard.remove(id);
+        if (e == null)
+            return;
+        entries.set(id & (SHARDS - 1), entryShard);
+        NameTable table = names(e.group).get(e.worldid);
+        if (table != null && table.get(e.name) == id) {
+            int s = NameTable.shard(e.name);
+            ObjectIntMap<String> shard = edit(table.shards.get(s));
+            shard.remove(e.name);
+            table.shards.set(s, shard);
+        }
+    }
+
+    /**
+     * Drops the name to id mapping of an entry, so the next lookup by name
+     * goes to the database. The id keeps resolving to the name, for writes
+     * still queued against it.
+     */
+    synchronized void forgetName(int id) {
+        Entry e = entries.get(id & (SHARDS - 1)).get(id);
+        if (e == null)
+            return;
+        NameTable table = names(e.group).get(e.worldid);
+        if (table != null && table.get(e.name) == id) {
+            int s = NameTable.shard(e.name);
+            ObjectIntMap<String> shard = edit(table.shards.get(s));
+            shard.remove(e.name);
+            table.shards.set(s, shard);
+        }
+    }
+
+    /**
+     * Copies the names of every entry of one type in one world.
+     */
+    Set<String> getEntryNames(int worldid, boolean group) {
+        refresh();
+        Set<String> result = new HashSet<String>();
+        NameTable table = names(group).get(worldid);
+        if (table != null) {
+            for (int i = 0; i < SHARDS; i++) {
+                result.addAll(table.shards.get(i).keys());
+            }
+        }
+        return result;
+    }
+
+    synchronized void clear() {
+        worldIds = new ObjectIntMap<String>(-1);
+        worldNames = new IntObjectMap<String>();
+        userNames = new IntObjectMap<NameTable>();
+        groupNames = new IntObjectMap<NameTable>();
+        for (int i = 0; i < SHARDS; i++) {
+            entries.set(i, new IntObjectMap<Entry>());
+        }
+    }
+
+    private IntObjectMap<NameTable> names(boolean group) {
+        return group ? groupNames : userNames;
+    }
+}
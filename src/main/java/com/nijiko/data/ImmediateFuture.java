@@ -0,0 +1,54 @@
+package com.nijiko.data;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Future that is complete when created, for results that are already known.
+ */
+final class ImmediateFuture<V> implements Future<V> {
+
+    private final V value;
+    private final Throwable failure;
+
+    private ImmediateFuture(V value, Throwable failure) {
+        this.value = value;
+        this.failure = failure;
+    }
+
+    static <V> ImmediateFuture<V> of(V value) {
+        return new ImmediateFuture<V>(value, null);
+    }
+
+    static <V> ImmediateFuture<V> failed(Throwable failure) {
+        return new ImmediateFuture<V>(null, failure);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return true;
+    }
+
+    @Override
+    public V get() throws ExecutionException {
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return value;
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws ExecutionException {
+        return get();
+    }
+}
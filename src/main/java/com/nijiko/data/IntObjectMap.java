@@ -0,0 +1,184 @@
+package com.nijiko.data;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from int keys to objects, so id lookups don't box.
+ * Not thread safe, but a map that is no longer modified may be read from any
+ * number of threads once safely published. Null values are not supported; get
+ * returns null for missing keys.
+ */
+final class IntObjectMap<V> {
+
+    private static final int FREE = 0;
+
+    private int[] keys;
+    private Object[] values;
+    private boolean hasZero = false;
+    private Object zeroValue;
+    private int size = 0;
+    private int mask;
+
+    IntObjectMap() {
+        this(16);
+    }
+
+    IntObjectMap(int expected) {
+        int capacity = 16;
+        while (capacity * 3 < expected * 4)
+            capacity <<= 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        if (key == FREE)
+            return hasZero ? (V) zeroValue : null;
+        int i = hash(key) & mask;
+        while (keys[i] != FREE) {
+            if (keys[i] == key)
+                return (V) values[i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("Null values are not supported");
+        if (key == FREE) {
+            V old = hasZero ? (V) zeroValue : null;
+            if (!hasZero)
+                size++;
+            hasZero = true;
+            zeroValue = value;
+            return old;
+        }
+        int i = hash(key) & mask;
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 4 > keys.length * 3)
+            rehash(keys.length << 1);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        if (key == FREE) {
+            if (!hasZero)
+                return null;
+            V old = (V) zeroValue;
+            hasZero = false;
+            zeroValue = null;
+            size--;
+            return old;
+        }
+        int i = hash(key) & mask;
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    private void shiftBack(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (keys[i] == FREE)
+                break;
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = FREE;
+        values[gap] = null;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != FREE) {
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != FREE)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Copy that can be modified without affecting this map.
+     */
+    IntObjectMap<V> copy() {
+        IntObjectMap<V> copy = new IntObjectMap<V>();
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.hasZero = hasZero;
+        copy.zeroValue = zeroValue;
+        copy.size = size;
+        copy.mask = mask;
+        return copy;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copies the keys into a new array, in no particular order.
+     */
+    int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        if (hasZero)
+            result[n++] = FREE;
+        for (int j = 0; j < keys.length; j++) {
+            if (keys[j] != FREE)
+                result[n++] = keys[j];
+        }
+        return result;
+    }
+
+    void clear() {
+        Arrays.fill(keys, FREE);
+        Arrays.fill(values, null);
+        hasZero = false;
+        zeroValue = null;
+        size = 0;
+    }
+}
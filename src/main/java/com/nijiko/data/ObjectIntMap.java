@@ -0,0 +1,162 @@
+package com.nijiko.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open-addressing hash map from objects to int values, so name-to-id lookups
+ * don't box. Not thread safe, but a map that is no longer modified may be read
+ * from any number of threads once safely published. Null keys are not
+ * supported; get returns the map's missing value for absent keys.
+ */
+final class ObjectIntMap<K> {
+
+    private Object[] keys;
+    private int[] values;
+    private final int missing;
+    private int size = 0;
+    private int mask;
+
+    ObjectIntMap(int missing) {
+        this(missing, 16);
+    }
+
+    ObjectIntMap(int missing, int expected) {
+        this.missing = missing;
+        int capacity = 16;
+        while (capacity * 3 < expected * 4)
+            capacity <<= 1;
+        keys = new Object[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    int get(Object key) {
+        int i = hash(key) & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(key))
+                return values[i];
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    boolean containsKey(Object key) {
+        int i = hash(key) & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(key))
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    int put(K key, int value) {
+        if (key == null)
+            throw new IllegalArgumentException("Null keys are not supported");
+        int i = hash(key) & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 4 > keys.length * 3)
+            rehash(keys.length << 1);
+        return missing;
+    }
+
+    int remove(Object key) {
+        int i = hash(key) & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                int old = values[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    private void shiftBack(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (keys[i] == null)
+                break;
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = null;
+        values[gap] = 0;
+    }
+
+    private void rehash(int capacity) {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new Object[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Copy that can be modified without affecting this map.
+     */
+    ObjectIntMap<K> copy() {
+        ObjectIntMap<K> copy = new ObjectIntMap<K>(missing);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.size = size;
+        copy.mask = mask;
+        return copy;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copies the keys into a new list, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    List<K> keys() {
+        List<K> result = new ArrayList<K>(size);
+        for (Object key : keys) {
+            if (key != null)
+                result.add((K) key);
+        }
+        return result;
+    }
+
+    void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+}
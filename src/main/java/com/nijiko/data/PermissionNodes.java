@@ -0,0 +1,113 @@
+package com.nijiko.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide dictionary of permission strings. Each distinct string gets a
+ * small int id once and keeps it, so {@link PermissionSet}s can hold ids
+ * instead of their own copies of the strings. The strings are also indexed in
+ * a trie of their dot-separated segments; a trie node knows the ids of the
+ * node itself, its negation and the wildcards below it.
+ * <p>
+ * Lookups take no locks; interning a new string synchronizes on the class.
+ * Ids are never reused, which is fine for the few thousand distinct nodes a
+ * server has.
+ */
+final class PermissionNodes {
+
+    static final class Node {
+        final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>(4);
+        // Set once while interning. A set holding one of these ids was built after that, so its readers see them
+        int grant = -1; // "node"
+        int deny = -1; // "-node"
+        int wildGrant = -1; // "node.*"
+        int wildDeny = -1; // "-node.*"
+    }
+
+    private static final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] names = new String[256];
+    private static int size = 0;
+    static final Node root = new Node();
+
+    private PermissionNodes() {
+    }
+
+    /**
+     * The id of a permission, or -1 if no set has ever held it.
+     */
+    static int find(String permission) {
+        Integer id = ids.get(permission);
+        return id == null ? -1 : id;
+    }
+
+    static int intern(String permission) {
+        Integer id = ids.get(permission);
+        if (id != null)
+            return id;
+        synchronized (PermissionNodes.class) {
+            id = ids.get(permission);
+            if (id != null)
+                return id;
+            int next = size++;
+            String[] table = names;
+            if (next == table.length) {
+                String[] grown = new String[table.length * 2];
+                System.arraycopy(table, 0, grown, 0, table.length);
+                table = grown;
+            }
+            // Assigned before the volatile write, so a reader holding the id finds the name
+            table[next] = permission;
+            names = table;
+            index(permission, next);
+            ids.put(permission, next);
+            return next;
+        }
+    }
+
+    static String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * The trie node of one segment below another, or null if no permission
+     * has that segment there.
+     */
+    static Node child(Node node, String segment) {
+        return node.children.get(segment);
+    }
+
+    private static void index(String permission, int id) {
+        boolean negated = permission.startsWith("-");
+        int start = negated ? 1 : 0;
+        boolean wild = permission.equals(negated ? "-*" : "*") || permission.endsWith(".*");
+        int stop = wild ? Math.max(start, permission.length() - 2) : permission.length();
+
+        Node node = root;
+        while (start < stop) {
+            int end = permission.indexOf('.', start);
+            if (end == -1 || end > stop)
+                end = stop;
+            String segment = permission.substring(start, end);
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+            start = end + 1;
+        }
+        // Spellings that land on the same node and flag (".*" and "*") keep the first id
+        if (wild) {
+            if (negated && node.wildDeny == -1)
+                node.wildDeny = id;
+            else if (!negated && node.wildGrant == -1)
+                node.wildGrant = id;
+        } else {
+            if (negated && node.deny == -1)
+                node.deny = id;
+            else if (!negated && node.grant == -1)
+                node.grant = id;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.nijiko.data;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of permission strings, held as a sorted array of
+ * {@link PermissionNodes} ids. The strings themselves live once in the
+ * dictionary, however many entries hold them; the Set view translates.
+ * <p>
+ * Checks walk the dictionary's trie of dot-separated segments and
+ * binary-search this set at each level, so they cost one step per segment no
+ * matter how many permissions the set holds. "-node" negates a node and
+ * "prefix.*" covers everything under prefix ("*" alone covers everything).
+ * <p>
+ * Not thread safe. CachedStorage never modifies a set once it is cached; it
+ * copies, changes and swaps in the copy.
+ */
+public final class PermissionSet extends AbstractSet<String> {
+
+    private static final int[] EMPTY = new int[0];
+
+    private int[] ids = EMPTY;
+    private int size = 0;
+    private int modCount = 0;
+
+    public PermissionSet() {
+    }
+
+    public PermissionSet(Collection<String> permissions) {
+        if (permissions instanceof PermissionSet) {
+            PermissionSet other = (PermissionSet) permissions;
+            ids = Arrays.copyOf(other.ids, other.size);
+            size = other.size;
+            return;
+        }
+        int[] loaded = new int[permissions.size()];
+        int n = 0;
+        for (String permission : permissions) {
+            loaded[n++] = PermissionNodes.intern(permission);
+        }
+        Arrays.sort(loaded, 0, n);
+        // Drop duplicates, in case the collection wasn't a set
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || loaded[unique - 1] != loaded[i])
+                loaded[unique++] = loaded[i];
+        }
+        ids = loaded;
+        size = unique;
+    }
+
+    static PermissionSet of(Collection<String> permissions) {
+        return permissions instanceof PermissionSet ? (PermissionSet) permissions : new PermissionSet(permissions);
+    }
+
+    /**
+     * Resolves a permission: TRUE if granted, FALSE if negated, null if the
+     * set says nothing about it. The most specific match wins - the node
+     * itself, then the nearest wildcard above it - and on a tie the negation
+     * wins.
+     */
+    public Boolean check(String permission) {
+        PermissionNodes.Node node = PermissionNodes.root;
+        Boolean result = verdict(node.wildGrant, node.wildDeny);
+        int start = 0;
+        while (true) {
+            int end = permission.indexOf('.', start);
+            node = PermissionNodes.child(node, end == -1 ? permission.substring(start) : permission.substring(start, end));
+            if (node == null)
+                return result;
+            if (end == -1) {
+                Boolean exact = verdict(node.grant, node.deny);
+                return exact != null ? exact : result;
+            }
+            Boolean wild = verdict(node.wildGrant, node.wildDeny);
+            if (wild != null)
+                result = wild;
+            start = end + 1;
+        }
+    }
+
+    public boolean has(String permission) {
+        return check(permission) == Boolean.TRUE;
+    }
+
+    /**
+     * Whether any permission in the set lies under the given prefix, e.g.
+     * "plugin" or "plugin.admin". Negations count too.
+     */
+    public boolean hasUnder(String prefix) {
+        for (int i = 0; i < size; i++) {
+            String permission = PermissionNodes.name(ids[i]);
+            int offset = permission.startsWith("-") ? 1 : 0;
+            if (permission.startsWith(prefix, offset) && (permission.length() == offset + prefix.length() || permission.charAt(offset + prefix.length()) == '.'))
+                return true;
+        }
+        return false;
+    }
+
+    private Boolean verdict(int grant, int deny) {
+        if (deny != -1 && indexOf(deny) >= 0)
+            return Boolean.FALSE;
+        if (grant != -1 && indexOf(grant) >= 0)
+            return Boolean.TRUE;
+        return null;
+    }
+
+    private int indexOf(int id) {
+        return Arrays.binarySearch(ids, 0, size, id);
+    }
+
+    @Override
+    public boolean add(String permission) {
+        int id = PermissionNodes.intern(permission);
+        int at = indexOf(id);
+        if (at >= 0)
+            return false;
+        at = -at - 1;
+        if (size == ids.length)
+            ids = Arrays.copyOf(ids, Math.max(4, size + (size >> 1)));
+        System.arraycopy(ids, at, ids, at + 1, size - at);
+        ids[at] = id;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof String))
+            return false;
+        int id = PermissionNodes.find((String) o);
+        int at = id == -1 ? -1 : indexOf(id);
+        if (at < 0)
+            return false;
+        removeAt(at);
+        return true;
+    }
+
+    private void removeAt(int at) {
+        System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+        size--;
+        modCount++;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String))
+            return false;
+        int id = PermissionNodes.find((String) o);
+        return id != -1 && indexOf(id) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        ids = EMPTY;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Iterates in id order, which is the order the strings were first seen.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+            private int last = -1;
+            private int expected = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public String next() {
+                if (expected != modCount)
+                    throw new ConcurrentModificationException();
+                if (next >= size)
+                    throw new NoSuchElementException();
+                last = next++;
+                return PermissionNodes.name(ids[last]);
+            }
+
+            @Override
+            public void remove() {
+                if (last == -1)
+                    throw new IllegalStateException();
+                if (expected != modCount)
+                    throw new ConcurrentModificationException();
+                removeAt(last);
+                next = last;
+                last = -1;
+                expected = modCount;
+            }
+        };
+    }
+}
@@ -0,0 +1,364 @@
+package com.nijiko.data;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for a single {@link ConnectionPool}. Every update is a single
+ * atomic operation so recording never contends with getConnection().
+ */
+public class PoolMetrics implements PoolMetricsMBean {
+
+    /** Upper bounds (exclusive, in microseconds) of the lease wait buckets. */
+    private static final long[] waitBounds = { 100L, 1000L, 5000L, 10000L, 50000L, 100000L, 500000L, 1000000L, 5000000L };
+
+    private final BlockingQueue<?> idle;
+    private final Semaphore leases;
+    private final int maxConnections;
+    private final long started = System.currentTimeMillis();
+
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger physical = new AtomicInteger(0);
+    private final AtomicInteger peakPhysical = new AtomicInteger(0);
+    private final AtomicLong leaseCount = new AtomicLong(0);
+    private final AtomicLong leaseTimeouts = new AtomicLong(0);
+    private final AtomicLong totalWaitMicros = new AtomicLong(0);
+    private final AtomicLong maxWaitMicros = new AtomicLong(0);
+    private final AtomicLongArray waitBuckets = new AtomicLongArray(waitBounds.length + 1);
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong destroyed = new AtomicLong(0);
+    private final AtomicLong validationFailures = new AtomicLong(0);
+    private final AtomicLong reaperEvictions = new AtomicLong(0);
+    private final AtomicLong leaksDetected = new AtomicLong(0);
+    private final AtomicLong forcedCloses = new AtomicLong(0);
+
+    PoolMetrics(BlockingQueue<?> idle, Semaphore leases, int maxConnections) {
+        this.idle = idle;
+        this.leases = leases;
+        this.maxConnections = maxConnections;
+    }
+
+    void leased(long waitNanos) {
+        active.incrementAndGet();
+        leaseCount.incrementAndGet();
+        long micros = waitNanos / 1000L;
+        totalWaitMicros.addAndGet(micros);
+        raise(maxWaitMicros, micros);
+        int bucket = 0;
+        while (bucket < waitBounds.length && micros >= waitBounds[bucket])
+            bucket++;
+        waitBuckets.incrementAndGet(bucket);
+    }
+
+    void returned() {
+        active.decrementAndGet();
+    }
+
+    void leaseTimedOut() {
+        leaseTimeouts.incrementAndGet();
+    }
+
+    void connectionCreated() {
+        created.incrementAndGet();
+        int current = physical.incrementAndGet();
+        for (;;) {
+            int peak = peakPhysical.get();
+            if (current <= peak || peakPhysical.compareAndSet(peak, current))
+                break;
+        }
+    }
+
+    void connectionDestroyed() {
+        destroyed.incrementAndGet();
+        physical.decrementAndGet();
+    }
+
+    void validationFailed() {
+        validationFailures.incrementAndGet();
+    }
+
+    void evicted() {
+        reaperEvictions.incrementAndGet();
+    }
+
+    void leakDetected() {
+        leaksDetected.incrementAndGet();
+    }
+
+    void forciblyClosed() {
+        forcedCloses.incrementAndGet();
+    }
+
+    private static void raise(AtomicLong max, long value) {
+        for (;;) {
+            long current = max.get();
+            if (value <= current || max.compareAndSet(current, value))
+                return;
+        }
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    @Override
+    public int getPhysicalConnections() {
+        return physical.get();
+    }
+
+    @Override
+    public int getPeakPhysicalConnections() {
+        return peakPhysical.get();
+    }
+
+    @Override
+    public int getWaitingThreads() {
+        return leases.getQueueLength();
+    }
+
+    @Override
+    public long getLeaseCount() {
+        return leaseCount.get();
+    }
+
+    @Override
+    public long getLeaseTimeouts() {
+        return leaseTimeouts.get();
+    }
+
+    @Override
+    public double getMeanLeaseWaitMillis() {
+        long count = leaseCount.get();
+        return count == 0 ? 0 : totalWaitMicros.get() / 1000.0 / count;
+    }
+
+    @Override
+    public double getMaxLeaseWaitMillis() {
+        return maxWaitMicros.get() / 1000.0;
+    }
+
+    @Override
+    public String[] getLeaseWaitHistogram() {
+        long[] counts = snapshot().getLeaseWaitBuckets();
+        String[] lines = new String[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            String bound = i < waitBounds.length ? "<" + (waitBounds[i] / 1000.0) + "ms" : ">=" + (waitBounds[waitBounds.length - 1] / 1000.0) + "ms";
+            lines[i] = bound + ": " + counts[i];
+        }
+        return lines;
+    }
+
+    @Override
+    public long getCreatedConnections() {
+        return created.get();
+    }
+
+    @Override
+    public long getDestroyedConnections() {
+        return destroyed.get();
+    }
+
+    @Override
+    public double getCreatedPerMinute() {
+        return perMinute(created.get());
+    }
+
+    @Override
+    public double getDestroyedPerMinute() {
+        return perMinute(destroyed.get());
+    }
+
+    private double perMinute(long count) {
+        long elapsed = Math.max(1L, System.currentTimeMillis() - started);
+        return count * 60000.0 / elapsed;
+    }
+
+    @Override
+    public long getValidationFailures() {
+        return validationFailures.get();
+    }
+
+    @Override
+    public long getReaperEvictions() {
+        return reaperEvictions.get();
+    }
+
+    @Override
+    public long getLeaksDetected() {
+        return leaksDetected.get();
+    }
+
+    @Override
+    public long getForcedCloses() {
+        return forcedCloses.get();
+    }
+
+    @Override
+    public void resetPeaks() {
+        peakPhysical.set(physical.get());
+        maxWaitMicros.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[waitBuckets.length()];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = waitBuckets.get(i);
+        return new Snapshot(this, buckets);
+    }
+
+    /**
+     * Upper bounds, in microseconds, of all but the last (unbounded) histogram bucket.
+     */
+    public static long[] getLeaseWaitBounds() {
+        return waitBounds.clone();
+    }
+
+    /**
+     * Point-in-time copy of the counters. Two snapshots can be diffed to get
+     * rates over an arbitrary window.
+     */
+    public static class Snapshot {
+        private final long timestamp = System.currentTimeMillis();
+        private final int active;
+        private final int idle;
+        private final int physical;
+        private final int peakPhysical;
+        private final int waiting;
+        private final long leaseCount;
+        private final long leaseTimeouts;
+        private final long totalWaitMicros;
+        private final long maxWaitMicros;
+        private final long[] leaseWaitBuckets;
+        private final long created;
+        private final long destroyed;
+        private final long validationFailures;
+        private final long reaperEvictions;
+        private final long leaksDetected;
+        private final long forcedCloses;
+
+        private Snapshot(PoolMetrics m, long[] buckets) {
+            this.active = m.active.get();
+            this.idle = m.idle.size();
+            this.physical = m.physical.get();
+            this.peakPhysical = m.peakPhysical.get();
+            this.waiting = m.leases.getQueueLength();
+            this.leaseCount = m.leaseCount.get();
+            this.leaseTimeouts = m.leaseTimeouts.get();
+            this.totalWaitMicros = m.totalWaitMicros.get();
+            this.maxWaitMicros = m.maxWaitMicros.get();
+            this.leaseWaitBuckets = buckets;
+            this.created = m.created.get();
+            this.destroyed = m.destroyed.get();
+            this.validationFailures = m.validationFailures.get();
+            this.reaperEvictions = m.reaperEvictions.get();
+            this.leaksDetected = m.leaksDetected.get();
+            this.forcedCloses = m.forcedCloses.get();
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        public int getPhysical() {
+            return physical;
+        }
+
+        public int getPeakPhysical() {
+            return peakPhysical;
+        }
+
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public long getLeaseCount() {
+            return leaseCount;
+        }
+
+        public long getLeaseTimeouts() {
+            return leaseTimeouts;
+        }
+
+        public long getTotalWaitMicros() {
+            return totalWaitMicros;
+        }
+
+        public long getMaxWaitMicros() {
+            return maxWaitMicros;
+        }
+
+        public long[] getLeaseWaitBuckets() {
+            return leaseWaitBuckets.clone();
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getDestroyed() {
+            return destroyed;
+        }
+
+        public long getValidationFailures() {
+            return validationFailures;
+        }
+
+        public long getReaperEvictions() {
+            return reaperEvictions;
+        }
+
+        public long getLeaksDetected() {
+            return leaksDetected;
+        }
+
+        public long getForcedCloses() {
+            return forcedCloses;
+        }
+
+        /**
+         * Physical connections created per second between <code>earlier</code> and this snapshot.
+         */
+        public double createRateSince(Snapshot earlier) {
+            return rate(created - earlier.created, earlier);
+        }
+
+        /**
+         * Physical connections destroyed per second between <code>earlier</code> and this snapshot.
+         */
+        public double destroyRateSince(Snapshot earlier) {
+            return rate(destroyed - earlier.destroyed, earlier);
+        }
+
+        private double rate(long delta, Snapshot earlier) {
+            long elapsed = Math.max(1L, timestamp - earlier.timestamp);
+            return delta * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "active=" + active + ", idle=" + idle + ", physical=" + physical + " (peak " + peakPhysical + "), waiting=" + waiting + ", leases=" + leaseCount + ", timeouts=" + leaseTimeouts + ", created=" + created + ", destroyed=" + destroyed + ", validationFailures=" + validationFailures + ", evictions=" + reaperEvictions + ", leaks=" + leaksDetected + ", forcedCloses=" + forcedCloses;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.nijiko.data;
+
+/**
+ * JMX view of a {@link ConnectionPool}. Registered under
+ * <code>com.nijiko.data:type=ConnectionPool,name=&lt;pool name&gt;</code>.
+ */
+public interface PoolMetricsMBean {
+
+    public int getMaxConnections();
+
+    public int getActiveConnections();
+
+    public int getIdleConnections();
+
+    public int getPhysicalConnections();
+
+    public int getPeakPhysicalConnections();
+
+    public int getWaitingThreads();
+
+    public long getLeaseCount();
+
+    public long getLeaseTimeouts();
+
+    public double getMeanLeaseWaitMillis();
+
+    public double getMaxLeaseWaitMillis();
+
+    /**
+     * Lease wait histogram as "&lt;upper bound&gt;: count" lines, the last bucket being unbounded.
+     */
+    public String[] getLeaseWaitHistogram();
+
+    public long getCreatedConnections();
+
+    public long getDestroyedConnections();
+
+    public double getCreatedPerMinute();
+
+    public double getDestroyedPerMinute();
+
+    public long getValidationFailures();
+
+    public long getReaperEvictions();
+
+    public long getLeaksDetected();
+
+    public long getForcedCloses();
+
+    public void resetPeaks();
+}
@@ -0,0 +1,24 @@
+package com.nijiko.data;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback for {@link SqlStorage#query(String, RowHandler)}. Parameters are
+ * bound and columns read with the typed JDBC accessors, so rows go straight
+ * into the caller's collection without boxing or an intermediate row list.
+ */
+abstract class RowHandler {
+
+    /**
+     * Binds the statement parameters. The statement has already been cleared.
+     */
+    void bind(PreparedStatement stmt) throws SQLException {
+    }
+
+    /**
+     * Called once per row, in result order. Return false to stop reading.
+     */
+    abstract boolean row(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,181 @@
+package com.nijiko.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings the database schema up to date. Applied versions are recorded in
+ * PrSchemaVersion; each migration runs once, in order. Statements are written
+ * in SQLite syntax and adjusted for MySQL by {@link #dialect(String)}. To
+ * change the schema, append a migration - never edit one that has shipped.
+ */
+final class SchemaMigrator {
+
+    static final String versionTableText = "CREATE TABLE IF NOT EXISTS PrSchemaVersion (" + " version INTEGER NOT NULL PRIMARY KEY," + " description VARCHAR(128) NOT NULL" + ")";
+    static final String versionGetText = "SELECT MAX(version) FROM PrSchemaVersion;";
+    static final String versionAddText = "INSERT INTO PrSchemaVersion (version, description) VALUES (?,?);";
+    static final String lockGetText = "SELECT GET_LOCK('PrSchemaVersion', 60);";
+    static final String lockReleaseText = "SELECT RELEASE_LOCK('PrSchemaVersion');";
+
+    // MySQL ER_DUP_KEYNAME
+    private static final int duplicateKeyName = 1061;
+
+    private static final List<Migration> migrations = new ArrayList<Migration>();
+
+    static final class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+
+    static {
+        // Tables as created before versioning; IF NOT EXISTS lets existing databases adopt version 1
+        migrations.add(new Migration(1, "Base tables",
+                "CREATE TABLE IF NOT EXISTS PrWorlds (" + " worldid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " worldname VARCHAR(32) NOT NULL UNIQUE" + ")",
+                "CREATE TABLE IF NOT EXISTS PrEntries (" + " entryid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " name VARCHAR(32) NOT NULL," + " worldid INTEGER NOT NULL," + " type TINYINT NOT NULL," + " CONSTRAINT NameWorld UNIQUE (name, worldid, type)," + " ENTRYINDEX" + " FOREIGN KEY(worldid) REFERENCES PrWorlds(worldid) ON DELETE CASCADE ON UPDATE CASCADE" + ")",
+                "CREATE TABLE IF NOT EXISTS PrPermissions (" + " permid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " permstring VARCHAR(64) NOT NULL," + " entryid INTEGER NOT NULL," + " CONSTRAINT PrEntryPerm UNIQUE (entryid, permstring)," + " FOREIGN KEY(entryid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")",
+                "CREATE TABLE IF NOT EXISTS PrInheritance (" + " uinheritid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " childid INTEGER NOT NULL," + " parentid INTEGER NOT NULL," + " parentorder INTEGER NOT NULL," + " CONSTRAINT PrParent UNIQUE (childid, parentid)," + " CONSTRAINT PrOrderedInheritance UNIQUE (childid, parentorder)," + " CONSTRAINT PrNoSelfInherit CHECK (childid <> parentid)," + " FOREIGN KEY(childid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE," + " FOREIGN KEY(parentid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")",
+                "CREATE TABLE IF NOT EXISTS PrWorldBase (" + " worldid INTEGER NOT NULL," + " defaultid INTEGER," + " FOREIGN KEY(worldid) REFERENCES PrWorlds(worldid) ON DELETE CASCADE ON UPDATE CASCADE," + " FOREIGN KEY(defaultid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")",
+                "CREATE TABLE IF NOT EXISTS PrData (" + " dataid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " entryid INTEGER NOT NULL ," + " path VARCHAR(64) NOT NULL," + " data VARCHAR(64) NOT NULL," + " CONSTRAINT PrDataUnique UNIQUE (entryid, path)," + " FOREIGN KEY(entryid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")",
+                "CREATE TABLE IF NOT EXISTS PrTracks (" + " trackid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " trackname VARCHAR(64) NOT NULL UNIQUE," + " worldid INTEGER NOT NULL," + " CONSTRAINT TracksUnique UNIQUE (trackid, worldid)," + " FOREIGN KEY(worldid) REFERENCES PrWorlds(worldid) ON DELETE CASCADE ON UPDATE CASCADE" + ")",
+                // The unique key used to name a trackname column this table never had
+                "CREATE TABLE IF NOT EXISTS PrTrackGroups (" + " trackgroupid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " trackid INTEGER NOT NULL," + " gid INTEGER NOT NULL," + " groupOrder INTEGER NOT NULL," + " CONSTRAINT TrackGroupsUnique UNIQUE (trackid, gid)," + " FOREIGN KEY(trackid) REFERENCES PrTracks(trackid) ON DELETE CASCADE ON UPDATE CASCADE," + " FOREIGN KEY(gid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")",
+                "SQLITE CREATE INDEX IF NOT EXISTS pr_entry_index ON PrEntries(name)"));
+        // Each index leads with the columns a hot statement filters on and carries the columns it reads
+        migrations.add(new Migration(2, "Covering indexes for entry and group lookups",
+                "CREATE INDEX pr_inherit_child ON PrInheritance(childid, parentorder, parentid)", // parentGetText, parentBulkText, worldParentText, parentAppendText
+                "CREATE INDEX pr_inherit_parent ON PrInheritance(parentid, childid)", // cascades and reverse lookups
+                "CREATE INDEX pr_entry_world ON PrEntries(worldid, type, name, entryid)", // entryListText, getEntry, world preload joins
+                "CREATE INDEX pr_data_entry ON PrData(entryid, path, data)", // dataGetText, worldDataText
+                "CREATE INDEX pr_tracks_world ON PrTracks(worldid, trackname, trackid)", // trackListText, trackGetText
+                "CREATE INDEX pr_trackgroups_track ON PrTrackGroups(trackid, groupOrder, gid)", // trackGetText
+                "CREATE INDEX pr_worldbase_world ON PrWorldBase(worldid, defaultid)")); // defGroupText
+        // No foreign key: deletions are logged too, after the entry is gone
+        migrations.add(new Migration(3, "Change log for cross-server cache invalidation",
+                "CREATE TABLE IF NOT EXISTS PrChangeLog (" + " seq INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " entryid INTEGER NOT NULL," + " kind TINYINT NOT NULL," + " origin VARCHAR(36) NOT NULL" + ")"));
+        // Names are case-sensitive, as in SQLite and the id dictionary; BINARY keeps the column's character set
+        migrations.add(new Migration(4, "Case-sensitive world and entry names on MySQL",
+                "MYSQL ALTER TABLE PrWorlds MODIFY worldname VARCHAR(32) BINARY NOT NULL",
+                "MYSQL ALTER TABLE PrEntries MODIFY name VARCHAR(32) BINARY NOT NULL"));
+    }
+
+    private final Dbms dbms;
+
+    SchemaMigrator(Dbms dbms) {
+        this.dbms = dbms;
+    }
+
+    static int getLatestVersion() {
+        return migrations.get(migrations.size() - 1).version;
+    }
+
+    void migrate(Connection dbConn) throws SQLException {
+        Statement s = dbConn.createStatement();
+        boolean locked = false;
+        try {
+            if (dbms == Dbms.SQLITE) {
+                s.execute("PRAGMA foreign_keys = ON;");
+            }
+            s.executeUpdate(dialect(versionTableText));
+            if (dbms == Dbms.MYSQL) {
+                // Servers sharing the database migrate one at a time; the version is read once we hold the lock
+                ResultSet lock = s.executeQuery(lockGetText);
+                locked = lock.next() && lock.getInt(1) == 1;
+                lock.close();
+                if (!locked)
+                    throw new SQLException("Timed out waiting for another server to finish migrating the schema.");
+            }
+            int current = 0;
+            ResultSet rs = s.executeQuery(versionGetText);
+            if (rs.next())
+                current = rs.getInt(1);
+            rs.close();
+
+            if (current > getLatestVersion()) {
+                System.err.println("[Permissions] Database schema version " + current + " is newer than this plugin knows (" + getLatestVersion() + "). Continuing without migrating.");
+                return;
+            }
+            for (Migration migration : migrations) {
+                if (migration.version > current)
+                    apply(dbConn, s, migration);
+            }
+        } finally {
+            if (locked)
+                s.executeQuery(lockReleaseText).close();
+            s.close();
+        }
+    }
+
+    private void apply(Connection dbConn, Statement s, Migration migration) throws SQLException {
+        System.out.println("[Permissions] Migrating database schema to version " + migration.version + ": " + migration.description + ".");
+        // SQLite DDL is transactional; MySQL commits each DDL statement implicitly
+        dbConn.setAutoCommit(false);
+        try {
+            for (String statement : migration.statements) {
+                String sql = dialect(statement);
+                if (sql != null)
+                    execute(s, sql);
+            }
+            PreparedStatement stmt = dbConn.prepareStatement(versionAddText);
+            try {
+                stmt.setInt(1, migration.version);
+                stmt.setString(2, migration.description);
+                stmt.executeUpdate();
+            } finally {
+                stmt.close();
+            }
+            dbConn.commit();
+        } catch (SQLException e) {
+            dbConn.rollback();
+            throw e;
+        } finally {
+            dbConn.setAutoCommit(true);
+        }
+    }
+
+    private void execute(Statement s, String sql) throws SQLException {
+        try {
+            s.executeUpdate(sql);
+        } catch (SQLException e) {
+            // MySQL has no CREATE INDEX IF NOT EXISTS, and its DDL survives the rollback of a failed migration
+            if (dbms != Dbms.MYSQL || e.getErrorCode() != duplicateKeyName)
+                throw e;
+            System.out.println("[Permissions] Skipping existing index: " + sql);
+        }
+    }
+
+    /**
+     * Adjusts a statement for the configured DBMS, or returns null if it
+     * doesn't apply. Statements prefixed with "SQLITE " or "MYSQL " only run
+     * on that DBMS.
+     */
+    String dialect(String statement) {
+        for (Dbms d : Dbms.values()) {
+            if (statement.startsWith(d.name() + " ")) {
+                if (d != dbms)
+                    return null;
+                statement = statement.substring(d.name().length() + 1);
+            }
+        }
+        if (dbms == Dbms.MYSQL) {
+            statement = statement.replace("AUTOINCREMENT", "AUTO_INCREMENT");
+            statement = statement.replace(" ENTRYINDEX", " INDEX pr_entryname_index(name),");
+            if (statement.startsWith("CREATE TABLE"))
+                statement = statement + " ENGINE = InnoDB";
+        } else {
+            statement = statement.replace(" ENTRYINDEX", "");
+        }
+        return statement + ";";
+    }
+}
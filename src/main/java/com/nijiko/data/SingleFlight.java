@@ -0,0 +1,55 @@
+package com.nijiko.data;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Collapses concurrent loads of the same key into one call. The first thread
+ * to ask runs the loader; threads asking while it runs wait for and share its
+ * result. Nothing is remembered once the call finishes, so callers keep their
+ * own cache and only come here on a miss.
+ */
+final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    V run(K key, Callable<V> loader) {
+        FutureTask<V> call = calls.get(key);
+        if (call == null) {
+            FutureTask<V> created = new FutureTask<V>(loader);
+            call = calls.putIfAbsent(key, created);
+            if (call == null) {
+                call = created;
+                try {
+                    call.run();
+                } finally {
+                    calls.remove(key, call);
+                }
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return call.get();
+                } catch (InterruptedException e) {
+                    // The load is shared; keep waiting and restore the flag afterwards
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -4,40 +4,107 @@ import java.io.File;
 
 import org.bukkit.util.config.Configuration;
 
+import com.nijiko.permissions.EntryType;
 import com.nijikokun.bukkit.Permissions.Permissions;
 
 public class SqlCreator implements StorageCreator {
 
     @Override
     public UserStorage getUserStorage(String world, int reload, boolean autosave, Configuration config) throws Exception {
-        String dbms = config.getString("permissions.storage.dbms", "SQLITE");
-        String uri = config.getString("permissions.storage.uri", "jdbc:sqlite:" + Permissions.instance.getDataFolder() + File.separator + "permissions.db");
-        String username = config.getString("permissions.storage.username");
-        String password = config.getString("permissions.storage.password");
         boolean cached = config.getBoolean("permissions.storage.cache", true);
+        boolean preload = config.getBoolean("permissions.storage.preload", false);
 
-        SqlStorage.init(dbms, uri, username, password, reload);
+        init(reload, cached, config);
         SqlUserStorage sus = SqlStorage.getUserStorage(world);
-        if (cached)
-            return new CachedUserStorage(sus);
-        else
+        if (cached) {
+            SqlStorage.Settings settings = SqlStorage.getSettings();
+            CachedUserStorage cus = new CachedUserStorage(sus, settings.userCacheMaxEntries, settings.userCacheExpireAfterAccess);
+            if (preload)
+                preload(cus, sus);
+            register(cus);
+            return cus;
+        } else
             return sus;
     }
 
     @Override
     public GroupStorage getGroupStorage(String world, int reload, boolean autosave, Configuration config) throws Exception {
-        String dbms = config.getString("permissions.storage.dbms", "SQLITE");
-        String uri = config.getString("permissions.storage.uri", "jdbc:sqlite:" + Permissions.instance.getDataFolder() + File.separator + "permissions.db");
-        String username = config.getString("permissions.storage.username");
-        String password = config.getString("permissions.storage.password");
         boolean cached = config.getBoolean("permissions.storage.cache", true);
+        boolean preload = config.getBoolean("permissions.storage.preload", false);
         
-        SqlStorage.init(dbms, uri, username, password, reload);
+        init(reload, cached, config);
         SqlGroupStorage sgs = SqlStorage.getGroupStorage(world);
-        if (cached)
-            return new CachedGroupStorage(sgs);
-        else
+        if (cached) {
+            CachedGroupStorage cgs = new CachedGroupStorage(sgs);
+            if (preload)
+                preload(cgs, sgs);
+            register(cgs);
+            return cgs;
+        } else
             return sgs;
     }
 
+    private void preload(CachedStorage cache, SqlEntryStorage storage) {
+        long start = System.currentTimeMillis();
+        WorldPreload preload = storage.preloadWorld();
+        cache.preload(preload);
+        System.out.println("[Permissions] Preloaded " + preload.size() + " " + (storage.getType() == EntryType.GROUP ? "groups" : "users") + " in world '" + storage.getWorld() + "' (" + (System.currentTimeMillis() - start) + "ms).");
+    }
+
+    private void register(CachedStorage cache) {
+        SqlStorage.getEffectivePermissions().register(cache);
+        ChangeLog changeLog = SqlStorage.getChangeLog();
+        if (changeLog != null)
+            changeLog.register(cache);
+    }
+
+    private void init(int reload, boolean cached, Configuration config) throws Exception {
+        String dbms = config.getString("permissions.storage.dbms", "SQLITE");
+        String uri = config.getString("permissions.storage.uri", "jdbc:sqlite:" + Permissions.instance.getDataFolder() + File.separator + "permissions.db");
+        String username = config.getString("permissions.storage.username");
+        String password = config.getString("permissions.storage.password");
+
+        SqlStorage.Settings settings = new SqlStorage.Settings();
+        settings.cached = cached;
+        settings.sqliteSplitReaders = config.getBoolean("permissions.storage.sqlite.split-readers", settings.sqliteSplitReaders);
+        // Without the cache, reads go straight to the database and would miss queued writes
+        settings.writeBehind = cached && config.getBoolean("permissions.storage.write-behind", settings.writeBehind);
+        settings.writeBehindDelay = config.getInt("permissions.storage.write-behind-delay", (int) settings.writeBehindDelay);
+        settings.asyncQueueSize = config.getInt("permissions.storage.async-queue-size", settings.asyncQueueSize);
+        // Only caches can go stale, so there is nothing to invalidate without them
+        settings.changeLog = cached && config.getBoolean("permissions.storage.change-log.enabled", settings.changeLog);
+        settings.changeLogInterval = config.getInt("permissions.storage.change-log.poll-interval", (int) settings.changeLogInterval);
+        settings.changeLogRetention = config.getInt("permissions.storage.change-log.retention", (int) settings.changeLogRetention);
+        settings.userCacheMaxEntries = config.getInt("permissions.storage.user-cache.max-entries", settings.userCacheMaxEntries);
+        settings.userCacheExpireAfterAccess = config.getInt("permissions.storage.user-cache.expire-after-access", (int) settings.userCacheExpireAfterAccess);
+        settings.userCacheEvictOnQuit = config.getBoolean("permissions.storage.user-cache.evict-on-quit", settings.userCacheEvictOnQuit);
+        settings.negativeCacheTtl = config.getInt("permissions.storage.negative-cache-ttl", (int) settings.negativeCacheTtl);
+
+        ConnectionPool.Settings pool = settings.pool;
+        pool.maxConnections = config.getInt("permissions.storage.pool.max-connections", pool.maxConnections);
+        pool.minIdle = config.getInt("permissions.storage.pool.min-idle", pool.minIdle);
+        pool.acquireTimeout = config.getInt("permissions.storage.pool.acquire-timeout", (int) pool.acquireTimeout);
+        pool.validationInterval = config.getInt("permissions.storage.pool.validation-interval", (int) pool.validationInterval);
+        pool.idleTimeout = config.getInt("permissions.storage.pool.idle-timeout", (int) pool.idleTimeout);
+        pool.keepaliveInterval = config.getInt("permissions.storage.pool.keepalive-interval", (int) pool.keepaliveInterval);
+        pool.leakThreshold = config.getInt("permissions.storage.pool.leak-threshold", (int) pool.leakThreshold);
+        pool.leakStackTraces = config.getBoolean("permissions.storage.pool.leak-stack-traces", pool.leakStackTraces);
+
+        TuningProfile tuning = settings.tuning;
+        String base = "permissions.storage.tuning.";
+        tuning.journalMode = config.getString(base + "sqlite.journal-mode", tuning.journalMode);
+        tuning.synchronous = config.getString(base + "sqlite.synchronous", tuning.synchronous);
+        tuning.cacheSize = config.getInt(base + "sqlite.cache-size", tuning.cacheSize);
+        tuning.tempStore = config.getString(base + "sqlite.temp-store", tuning.tempStore);
+        tuning.busyTimeout = config.getInt(base + "sqlite.busy-timeout", tuning.busyTimeout);
+        tuning.rewriteBatchedStatements = config.getBoolean(base + "mysql.rewrite-batched-statements", tuning.rewriteBatchedStatements);
+        tuning.useLocalSessionState = config.getBoolean(base + "mysql.use-local-session-state", tuning.useLocalSessionState);
+        tuning.cacheServerConfiguration = config.getBoolean(base + "mysql.cache-server-configuration", tuning.cacheServerConfiguration);
+        tuning.preparedStatementCacheSize = config.getInt(base + "mysql.prepared-statement-cache-size", tuning.preparedStatementCacheSize);
+        tuning.connectTimeout = config.getInt(base + "mysql.connect-timeout", tuning.connectTimeout);
+        tuning.socketTimeout = config.getInt(base + "mysql.socket-timeout", tuning.socketTimeout);
+
+        SqlStorage.init(dbms, uri, username, password, reload, settings);
+    }
+
 }
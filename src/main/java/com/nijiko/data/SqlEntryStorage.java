@@ -1,7 +1,11 @@
 package com.nijiko.data;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -10,7 +14,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import com.nijiko.data.SqlStorage.NameWorldId;
+import com.nijiko.data.WriteBehindQueue.Write;
 import com.nijiko.permissions.EntryType;
 
 public abstract class SqlEntryStorage implements Storage {
@@ -18,15 +22,30 @@ public abstract class SqlEntryStorage implements Storage {
     protected static final int max = 5;
     protected final String world;
     protected int worldId;
-    protected Map<String, Integer> idCache = new HashMap<String, Integer>();
 
     protected static final String permGetText = "SELECT permstring FROM PrPermissions WHERE entryid = ?;";
-    protected static final String parentGetText = "SELECT parentid FROM PrInheritance WHERE childid = ? ORDER BY parentorder;";
+    protected static final String parentGetText = "SELECT PrWorlds.worldname, PrEntries.name FROM PrInheritance, PrEntries, PrWorlds WHERE PrInheritance.childid = ? AND PrEntries.entryid = PrInheritance.parentid AND PrWorlds.worldid = PrEntries.worldid ORDER BY PrInheritance.parentorder;";
+    protected static final String parentBulkText = "SELECT PrInheritance.childid, PrWorlds.worldname, PrEntries.name FROM PrInheritance, PrEntries, PrWorlds WHERE PrInheritance.childid IN (%s) AND PrEntries.entryid = PrInheritance.parentid AND PrWorlds.worldid = PrEntries.worldid ORDER BY PrInheritance.childid, PrInheritance.parentorder;";
+    protected static final int parentBulkChunk = 64;
+    // Chunks are padded to one of these sizes, so the statement cache sees three distinct statements instead of 64
+    private static final int[] parentBulkSizes = { 4, 16, parentBulkChunk };
+    private static final String[] parentBulkStatements = new String[parentBulkSizes.length];
+
+    static {
+        for (int i = 0; i < parentBulkSizes.length; i++) {
+            StringBuilder marks = new StringBuilder(parentBulkSizes[i] * 2);
+            for (int j = 0; j < parentBulkSizes[i]; j++) {
+                marks.append(j == 0 ? "?" : ",?");
+            }
+            parentBulkStatements[i] = String.format(parentBulkText, marks);
+        }
+    }
 
     protected static final String permAddText = "INSERT IGNORE INTO PrPermissions (entryid, permstring) VALUES (?,?);";
     protected static final String permRemText = "DELETE FROM PrPermissions WHERE entryid = ? AND permstring = ?;";
-    protected static final String maxParentText = "SELECT MAX(parentorder) FROM PrInheritance WHERE childid = ?;";
     protected static final String parentAddText = "INSERT IGNORE INTO PrInheritance (childid, parentid, parentorder) VALUES (?,?,?);";
+    // Appends in one statement; the order is computed under the insert's own lock instead of a separate read
+    protected static final String parentAppendText = "INSERT IGNORE INTO PrInheritance (childid, parentid, parentorder) SELECT ?, ?, COALESCE(MAX(parentorder), 0) + 1 FROM PrInheritance WHERE childid = ?;";
     protected static final String parentRemText = "DELETE FROM PrInheritance WHERE childid = ? AND parentid = ?;";
 
     protected static final String parentRemAllText = "DELETE FROM PrInheritance WHERE childid = ?;";
@@ -35,67 +54,110 @@ public abstract class SqlEntryStorage implements Storage {
     protected static final String entryDelText = "DELETE FROM PrEntries WHERE worldid = ? AND entryid = ?;";
 
     protected static final String dataGetText = "SELECT data FROM PrData WHERE entryid = ? AND path = ?;";
+    protected static final String dataAllText = "SELECT path, data FROM PrData WHERE entryid = ?;";
     protected static final String dataModText = "REPLACE INTO PrData (data, entryid, path) VALUES (?,?,?);";
     protected static final String dataDelText = "DELETE FROM PrData WHERE entryid = ? AND path = ?;";
 
+    protected static final String worldPermText = "SELECT PrEntries.name, PrPermissions.permstring FROM PrEntries, PrPermissions WHERE PrEntries.worldid = ? AND PrEntries.type = ? AND PrPermissions.entryid = PrEntries.entryid;";
+    protected static final String worldParentText = "SELECT child.name, PrWorlds.worldname, parent.name FROM PrEntries child, PrInheritance, PrEntries parent, PrWorlds WHERE child.worldid = ? AND child.type = ? AND PrInheritance.childid = child.entryid AND parent.entryid = PrInheritance.parentid AND PrWorlds.worldid = parent.worldid ORDER BY PrInheritance.childid, PrInheritance.parentorder;";
+    protected static final String worldDataText = "SELECT PrEntries.name, PrData.path, PrData.data FROM PrEntries, PrData WHERE PrEntries.worldid = ? AND PrEntries.type = ? AND PrData.entryid = PrEntries.entryid;";
+
     public SqlEntryStorage(String world, int id) {
         worldId = id;
         this.world = world;
-        reload();
     }
 
     @Override
     public Set<String> getPermissions(String name) {
-        Set<String> permissions = new HashSet<String>();
+        final Set<String> permissions = new HashSet<String>();
         if (name != null) {
-            int id;
-            try {
-                id = getId(name);
-            } catch (SQLException e) {
-                e.printStackTrace();
+            final int id = findId(name);
+            if (id == -1)
                 return permissions;
-            }
-            List<Object[]> results = SqlStorage.runQuery(permGetText, new Object[] { id }, false, 1);
-            if (results != null) {
-                for (Object[] row : results) {
-                    Object o = row[0];
-                    if (o instanceof String) {
-                        permissions.add((String) o);
-                    }
+            SqlStorage.query(permGetText, new RowHandler() {
+                @Override
+                void bind(PreparedStatement stmt) throws SQLException {
+                    stmt.setInt(1, id);
                 }
-            }
+
+                @Override
+                boolean row(ResultSet rs) throws SQLException {
+                    permissions.add(rs.getString(1));
+                    return true;
+                }
+            });
         }
         return permissions;
     }
 
     @Override
     public LinkedHashSet<GroupWorld> getParents(String name) {
-        LinkedHashSet<GroupWorld> parents = new LinkedHashSet<GroupWorld>();
+        final LinkedHashSet<GroupWorld> parents = new LinkedHashSet<GroupWorld>();
         if (name != null) {
-            int uid;
-            try {
-                uid = getId(name);
-            } catch (SQLException e) {
-                e.printStackTrace();
+            final int uid = findId(name);
+            if (uid == -1)
                 return parents;
+            SqlStorage.query(parentGetText, new RowHandler() {
+                @Override
+                void bind(PreparedStatement stmt) throws SQLException {
+                    stmt.setInt(1, uid);
+                }
+
+                @Override
+                boolean row(ResultSet rs) throws SQLException {
+                    parents.add(new GroupWorld(rs.getString(1), rs.getString(2)));
+                    return true;
+                }
+            });
+        }
+        return parents;
+    }
+
+    /**
+     * Resolves the parents of many entries at once, in chunks of
+     * {@value #parentBulkChunk} children per query. Every requested name is
+     * present in the result, with an empty set if it has no parents.
+     */
+    public Map<String, LinkedHashSet<GroupWorld>> getParents(Collection<String> names) {
+        final Map<String, LinkedHashSet<GroupWorld>> result = new HashMap<String, LinkedHashSet<GroupWorld>>();
+        final IntObjectMap<LinkedHashSet<GroupWorld>> byId = new IntObjectMap<LinkedHashSet<GroupWorld>>(names.size());
+        final List<Integer> ids = new ArrayList<Integer>(names.size());
+        for (String name : names) {
+            if (name == null || result.containsKey(name))
+                continue;
+            LinkedHashSet<GroupWorld> parents = new LinkedHashSet<GroupWorld>();
+            result.put(name, parents);
+            int id = findId(name);
+            if (id != -1) {
+                byId.put(id, parents);
+                ids.add(id);
             }
-            List<Object[]> results = SqlStorage.runQuery(parentGetText, new Object[] { uid }, false, 1);
-            if (results != null) {
-                for (Object[] row : results) {
-                    Object o = row[0];
-                    if (o instanceof Integer) {
-                        int groupid = (Integer) o;
-                        NameWorldId nw;
-                        String worldName;
-                        nw = SqlStorage.getEntryName(groupid);
-                        worldName = SqlStorage.getWorldName(nw.worldid);
-                        GroupWorld gw = new GroupWorld(worldName, nw.name);
-                        parents.add(gw);
+        }
+        for (int start = 0; start < ids.size(); start += parentBulkChunk) {
+            final List<Integer> chunk = ids.subList(start, Math.min(ids.size(), start + parentBulkChunk));
+            int size = 0;
+            while (parentBulkSizes[size] < chunk.size())
+                size++;
+            final int marks = parentBulkSizes[size];
+            SqlStorage.query(parentBulkStatements[size], new RowHandler() {
+                @Override
+                void bind(PreparedStatement stmt) throws SQLException {
+                    // Unused placeholders repeat the last id
+                    for (int i = 0; i < marks; i++) {
+                        stmt.setInt(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
                     }
                 }
-            }
+
+                @Override
+                boolean row(ResultSet rs) throws SQLException {
+                    LinkedHashSet<GroupWorld> parents = byId.get(rs.getInt(1));
+                    if (parents != null)
+                        parents.add(new GroupWorld(rs.getString(2), rs.getString(3)));
+                    return true;
+                }
+            });
         }
-        return parents;
+        return result;
     }
 
     @Override
@@ -107,19 +169,18 @@ public abstract class SqlEntryStorage implements Storage {
             e.printStackTrace();
             return;
         }
-        SqlStorage.runUpdate(permAddText, new Object[] { uid, permission });
+        write(new Write("p:" + uid + ":" + permission, uid, ChangeLog.PERMISSIONS, permAddText, new Object[] { uid, permission }));
+        logChange(name, uid, ChangeLog.PERMISSIONS);
     }
 
     @Override
     public void removePermission(String name, String permission) {
-        int uid;
-        try {
-            uid = getId(name);
-        } catch (SQLException e) {
-            e.printStackTrace();
+        // Nothing to remove from an entry that doesn't exist
+        int uid = findId(name);
+        if (uid == -1)
             return;
-        }
-        SqlStorage.runUpdate(permRemText, new Object[] { uid, permission });
+        write(new Write("p:" + uid + ":" + permission, uid, ChangeLog.PERMISSIONS, permRemText, new Object[] { uid, permission }));
+        logChange(name, uid, ChangeLog.PERMISSIONS);
     }
 
     @Override
@@ -133,86 +194,75 @@ public abstract class SqlEntryStorage implements Storage {
             e.printStackTrace();
             return;
         }
-        int parentOrder = 0;
-        List<Object[]> results = SqlStorage.runQuery(maxParentText, new Object[] { uid }, true, 1);
-        if (results != null && !results.isEmpty()) {
-            Object o = results.get(0)[0];
-            if (o instanceof Integer) {
-                parentOrder = (Integer) o;
+        write(new Write("i:" + uid + ":" + gid, uid, ChangeLog.PARENTS, parentAppendText, new Object[] { uid, gid, uid }) {
+            @Override
+            boolean replaces(Write older) {
+                // A removal still matters: the re-added parent has to move to the end
+                return !parentRemText.equals(older.statement);
             }
-        }
-        parentOrder++;
-        SqlStorage.runUpdate(parentAddText, new Object[] { uid, gid, parentOrder });
+        });
+        logChange(name, uid, ChangeLog.PARENTS);
     }
 
     @Override
     public void removeParent(String name, String groupWorld, String groupName) {
-        int uid;
-        int gid;
-        try {
-            gid = SqlStorage.getEntry(groupWorld, groupName, true);
-            uid = getId(name);
-        } catch (SQLException e) {
-            e.printStackTrace();
+        int uid = findId(name);
+        if (uid == -1)
             return;
-        }
-        SqlStorage.runUpdate(parentRemText, new Object[] { uid, gid });
+        int groupWorldId = SqlStorage.findWorld(groupWorld);
+        if (groupWorldId == -1)
+            return;
+        int gid = SqlStorage.findEntry(groupWorldId, groupName, true);
+        if (gid == -1)
+            return;
+        write(new Write("i:" + uid + ":" + gid, uid, ChangeLog.PARENTS, parentRemText, new Object[] { uid, gid }));
+        logChange(name, uid, ChangeLog.PARENTS);
     }
 
     @Override
     public void setParents(String name, LinkedHashSet<GroupWorld> groupWs) {
-        int uid;
-        int[] gids = new int[groupWs.size()];
-        Connection conn = null;
+        final int uid;
+        final int[] gids = new int[groupWs.size()];
         try {
             uid = getId(name);
             int i = 0;
             for (GroupWorld gw : groupWs) {
-                i++;
-                gids[i] = SqlStorage.getEntry(gw.getWorld(), gw.getName(), true);
-            }
-
-            conn = SqlStorage.getConnection();
-            conn.setAutoCommit(false);
-
-            SqlStorage.runUpdate(conn, parentRemAllText, new Object[] { uid });
-
-            Object[] pair = new Object[2];
-            pair[0] = uid;
-
-            for (int gid : gids) {
-                pair[1] = gid;
-                SqlStorage.runUpdate(conn, parentAddText, pair);
+                gids[i++] = SqlStorage.getEntry(gw.getWorld(), gw.getName(), true);
             }
-            conn.commit();
-
         } catch (SQLException e) {
             e.printStackTrace();
             return;
-        } finally {
-            if (conn != null)
-                try {
-                    conn.setAutoCommit(true);
-                } catch (SQLException e) {
-                    e.printStackTrace();
+        }
+        WriteBehindQueue queue = SqlStorage.getWriteQueue();
+        if (queue == null) {
+            if (SqlStorage.runBatch(parentRemAllText, new Object[] { uid }, parentAddText, parentRows(uid, gids)) == null)
+                SqlStorage.getEffectivePermissions().written(world, getType(), name, ChangeLog.PARENTS); // Rolled back; the cache is ahead
+        } else {
+            queue.submit(new Write("i:" + uid + ":*", "i:" + uid + ":", true, uid, ChangeLog.PARENTS, parentRemAllText, new Object[] { uid }) {
+                @Override
+                void apply(Connection conn) throws SQLException {
+                    // entryid rather than uid: a retried write may have moved to a re-created entry
+                    SqlStorage.executeUpdate(conn, parentRemAllText, params);
+                    int[] counts = SqlStorage.runBatch(conn, parentAddText, parentRows(entryid, gids));
+                    for (int count : counts)
+                        SqlStorage.checkInserted(conn, parentAddText, count, entryid);
                 }
+            });
         }
-        // TODO
+        logChange(name, uid, ChangeLog.PARENTS);
+    }
+
+    private static List<Object[]> parentRows(int uid, int[] gids) {
+        List<Object[]> rows = new ArrayList<Object[]>(gids.length);
+        for (int i = 0; i < gids.length; i++) {
+            rows.add(new Object[] { uid, gids[i], i + 1 });
+        }
+        return rows;
     }
 
     @Override
     public Set<String> getEntries() {
-        if (idCache.isEmpty()) {
-            List<Object[]> results = SqlStorage.runQuery(entryListText, new Object[] { worldId, (byte) (this.getType() == EntryType.GROUP ? 1 : 0) }, false, 1, 2);
-            for (Object[] row : results) {
-                Object oName = row[0];
-                Object oId = row[1];
-                if (oName instanceof String && oId instanceof Integer) {
-                    idCache.put((String) oName, (Integer) oId);
-                }
-            }
-        }
-        return idCache.keySet();
+        return SqlStorage.getDictionary().getEntryNames(worldId, isGroup());
     }
 
     @Override
@@ -222,17 +272,20 @@ public abstract class SqlEntryStorage implements Storage {
 
     @Override
     public void forceSave() {
-        return;
+        WriteBehindQueue queue = SqlStorage.getWriteQueue();
+        if (queue != null)
+            queue.flush();
     }
 
     @Override
     public void save() {
-        return;
+        forceSave();
     }
 
     @Override
     public void reload() {
-        idCache.clear();
+        SqlStorage.getDictionary().loadEntries(worldId, isGroup());
+        SqlStorage.forgetMissingEntries();
     }
 
     @Override
@@ -247,9 +300,8 @@ public abstract class SqlEntryStorage implements Storage {
 
     @Override
     public boolean create(String name) {
-        if (!idCache.containsKey(name)) {
-            int id = SqlStorage.getEntry(world, name, this.getType() == EntryType.GROUP);
-            idCache.put(name, id);
+        if (getCachedId(name) == null) {
+            SqlStorage.getEntry(world, name, isGroup());
             return true;
         }
         return false;
@@ -257,71 +309,75 @@ public abstract class SqlEntryStorage implements Storage {
 
     @Override
     public boolean delete(String name) {
-        int id = idCache.remove(name);
+        forceSave();
+        Integer id = getCachedId(name);
+        if (id == null)
+            return false;
         int val = SqlStorage.runUpdate(entryDelText, new Object[] { worldId, id });
+        SqlStorage.getDictionary().removeEntry(id);
+        if (val != 0)
+            logChange(name, id, ChangeLog.ENTRY);
         return val != 0;
     }
 
     @Override
-    public String getString(String name, String path) {
-        String data = null;
-        int uid;
-        try {
-            uid = getId(name);
-        } catch (SQLException e) {
-            e.printStackTrace();
+    public String getString(String name, final String path) {
+        final String[] data = { null };
+        final int uid = findId(name);
+        if (uid == -1)
+            return null;
+        SqlStorage.query(dataGetText, new RowHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                stmt.setInt(1, uid);
+                stmt.setString(2, path);
+            }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                data[0] = rs.getString(1);
+                return false;
+            }
+        });
+        return data[0];
+    }
+
+    /**
+     * Every data path of an entry and its raw value, in one query.
+     */
+    public Map<String, String> getAllData(String name) {
+        final Map<String, String> data = new HashMap<String, String>();
+        final int uid = findId(name);
+        if (uid == -1)
             return data;
-        }
-        List<Object[]> results = SqlStorage.runQuery(dataGetText, new Object[] { uid, path }, true, 1);
-        for (Object[] row : results) {
-            Object o = row[0];
-            if (o instanceof String) {
-                data = (String) o;
+        SqlStorage.query(dataAllText, new RowHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                stmt.setInt(1, uid);
             }
-        }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                data.put(rs.getString(1), rs.getString(2));
+                return true;
+            }
+        });
         return data;
     }
 
     @Override
     public Integer getInt(String name, String path) {
-        String raw = getString(name, path);
-        if (raw == null)
-            return null;
-        Integer value;
-        try {
-            value = Integer.valueOf(raw);
-        } catch (NumberFormatException e) {
-            value = null;
-        }
-        return value;
+        return DataValue.toInt(getString(name, path));
     }
 
     @Override
     public Double getDouble(String name, String path) {
-        String raw = getString(name, path);
-        if (raw == null)
-            return null;
-        Double value;
-        try {
-            value = Double.valueOf(raw);
-        } catch (NumberFormatException e) {
-            value = null;
-        }
-        return value;
+        return DataValue.toDouble(getString(name, path));
     }
 
     @Override
     public Boolean getBool(String name, String path) {
-        String raw = getString(name, path);
-        if (raw == null)
-            return null;
-        if (raw.equalsIgnoreCase("true")) {
-            return true;
-        } else if (raw.equalsIgnoreCase("false")) {
-            return false;
-        } else {
-            return null;
-        }
+        return DataValue.toBool(getString(name, path));
     }
 
     @Override
@@ -345,25 +401,118 @@ public abstract class SqlEntryStorage implements Storage {
             e.printStackTrace();
             return;
         }
-        SqlStorage.runUpdate(dataModText, new Object[] { szForm, uid, path });
+        write(new Write("d:" + uid + ":" + path, uid, ChangeLog.DATA, dataModText, new Object[] { szForm, uid, path }));
+        logChange(name, uid, ChangeLog.DATA);
     }
 
     @Override
     public void removeData(String name, String path) {
-        int uid;
-        try {
-            uid = getId(name);
-        } catch (SQLException e) {
-            e.printStackTrace();
+        int uid = findId(name);
+        if (uid == -1)
             return;
+        write(new Write("d:" + uid + ":" + path, uid, ChangeLog.DATA, dataDelText, new Object[] { uid, path }));
+        logChange(name, uid, ChangeLog.DATA);
+    }
+
+    /**
+     * Reads every entry of this storage's type in this world, along with its
+     * permissions, parents and data, using one query per table.
+     */
+    WorldPreload preloadWorld() {
+        final WorldPreload preload = new WorldPreload();
+
+        SqlStorage.query(entryListText, new EntryHandler() {
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                String name = rs.getString(1);
+                preload.ids.put(name, rs.getInt(2));
+                preload.permissions.put(name, new HashSet<String>());
+                preload.parents.put(name, new LinkedHashSet<GroupWorld>());
+                preload.data.put(name, new HashMap<String, Object>());
+                return true;
+            }
+        });
+        SqlStorage.query(worldPermText, new EntryHandler() {
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                Set<String> perms = preload.permissions.get(rs.getString(1));
+                if (perms != null)
+                    perms.add(rs.getString(2));
+                return true;
+            }
+        });
+        SqlStorage.query(worldParentText, new EntryHandler() {
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                LinkedHashSet<GroupWorld> entryParents = preload.parents.get(rs.getString(1));
+                if (entryParents != null)
+                    entryParents.add(new GroupWorld(rs.getString(2), rs.getString(3)));
+                return true;
+            }
+        });
+        SqlStorage.query(worldDataText, new EntryHandler() {
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                Map<String, Object> entryData = preload.data.get(rs.getString(1));
+                if (entryData != null)
+                    entryData.put(rs.getString(2), rs.getString(3));
+                return true;
+            }
+        });
+
+        IdDictionary dictionary = SqlStorage.getDictionary();
+        for (Map.Entry<String, Integer> entry : preload.ids.entrySet()) {
+            dictionary.putEntry(entry.getValue(), entry.getKey(), worldId, isGroup());
         }
-        SqlStorage.runUpdate(dataDelText, new Object[] { uid, path });
+        return preload;
+    }
+
+    /**
+     * Handler for the per-world listing queries, which all take this storage's
+     * world id and entry type.
+     */
+    private abstract class EntryHandler extends RowHandler {
+        @Override
+        void bind(PreparedStatement stmt) throws SQLException {
+            stmt.setInt(1, worldId);
+            stmt.setByte(2, (byte) (isGroup() ? 1 : 0));
+        }
+    }
+
+    private static void write(Write write) {
+        WriteBehindQueue queue = SqlStorage.getWriteQueue();
+        if (queue != null)
+            queue.submit(write);
+        else
+            WriteBehindQueue.execute(write);
+    }
+
+    private void logChange(String name, int id, byte kind) {
+        ChangeLog changeLog = SqlStorage.getChangeLog();
+        if (changeLog != null)
+            write(changeLog.change(id, kind));
+        // Cached writes notify the resolver through their cache; these bypassed it
+        if (!SqlStorage.getSettings().cached)
+            SqlStorage.getEffectivePermissions().written(world, getType(), name, kind);
     }
 
     public Integer getCachedId(String name) {
-        return idCache.get(name);
+        int id = SqlStorage.getDictionary().getEntryId(worldId, isGroup(), name);
+        return id == -1 ? null : id;
+    }
+
+    private boolean isGroup() {
+        return getType() == EntryType.GROUP;
     }
 
     protected abstract int getId(String name) throws SQLException;
 
+    /**
+     * Like {@link #getId(String)} for reads: returns -1 for a missing entry
+     * instead of creating it.
+     */
+    protected int findId(String name) {
+        return SqlStorage.findEntry(worldId, name, isGroup());
+    }
+
 }
@@ -1,17 +1,17 @@
 package com.nijiko.data;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
 
 import com.nijiko.permissions.EntryType;
 
 public class SqlGroupStorage extends SqlEntryStorage implements GroupStorage {
 
-    private String defaultGroup = null;
+    private volatile String defaultGroup = null;
     
     private static final String defGroupText = "SELECT defaultid FROM PrWorldBase WHERE worldid = ?;";
     private static final String trackListText = "SELECT trackname FROM PrTracks WHERE worldid = ?;";
@@ -31,32 +31,36 @@ public class SqlGroupStorage extends SqlEntryStorage implements GroupStorage {
         if(defaultGroup != null) {
             return defaultGroup.equals(name);
         }
-        List<Object[]> results = SqlStorage.runQuery(defGroupText, new Object[]{worldId}, true, 1);
-        Iterator<Object[]> iter = results.iterator();
-        if(iter.hasNext()) {
-            Object def = iter.next()[0];
-            if(def instanceof Integer) {
-                int defId = (Integer) def;
-                defaultGroup = SqlStorage.getEntryName(defId).name;
-                return defaultGroup.equals(name);
+        final int[] defId = { -1 };
+        SqlStorage.query(defGroupText, new WorldHandler() {
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                int id = rs.getInt(1);
+                if (!rs.wasNull())
+                    defId[0] = id;
+                return false;
             }
+        });
+        if(defId[0] != -1) {
+            defaultGroup = SqlStorage.getEntryName(defId[0]).name;
+            return defaultGroup.equals(name);
         }
         return false;
     }
 
     @Override
     public Set<String> getTracks() {
-        List<Object[]> results = SqlStorage.runQuery(trackListText, new Object[]{worldId}, false, 1);
-        Set<String> tracks = new LinkedHashSet<String>();
-        for(Object[] arr : results) {
-            Object o = arr[0];
-            if(o instanceof String) {
-                String s = (String) o;
+        final Set<String> tracks = new LinkedHashSet<String>();
+        SqlStorage.query(trackListText, new WorldHandler() {
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                String s = rs.getString(1);
                 if(s.equals("deftrack"))
                     s = null;
                 tracks.add(s);
+                return true;
             }
-        }
+        });
         return tracks;
     }
 
@@ -65,28 +69,34 @@ public class SqlGroupStorage extends SqlEntryStorage implements GroupStorage {
         if(track == null) {
             track = "deftrack"; //Name of default SQL track
         }
-        List<Object[]> results = SqlStorage.runQuery(trackGetText, new Object[]{worldId, track}, false, 1, 2);
-        LinkedList<GroupWorld> trackGroups = new LinkedList<GroupWorld>();
-        for(Object[] arr : results) {
-            Object oWorld = arr[0];
-            Object oName = arr[1];
-            if(oWorld instanceof String && oName instanceof String) {                
-                trackGroups.add(new GroupWorld((String)oWorld, (String)oName));
+        final String trackName = track;
+        final LinkedList<GroupWorld> trackGroups = new LinkedList<GroupWorld>();
+        SqlStorage.query(trackGetText, new WorldHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                super.bind(stmt);
+                stmt.setString(2, trackName);
             }
-        }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                trackGroups.add(new GroupWorld(rs.getString(1), rs.getString(2)));
+                return true;
+            }
+        });
         return trackGroups;
     }
 
+    private abstract class WorldHandler extends RowHandler {
+        @Override
+        void bind(PreparedStatement stmt) throws SQLException {
+            stmt.setInt(1, worldId);
+        }
+    }
+
     @Override
     protected int getId(String name) throws SQLException {
-        int gid = -1;
-        if (idCache.containsKey(name))
-            gid = idCache.get(name);
-        else {
-            gid = SqlStorage.getEntry(world, name, true);
-            idCache.put(name, gid);
-        }
-        return gid;
+        return SqlStorage.getEntry(world, name, true);
     }
     
 }
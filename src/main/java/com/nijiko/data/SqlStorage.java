@@ -5,59 +5,61 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
+import java.sql.Types;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.sql.DataSource;
 
-import org.sqlite.SQLiteDataSource;
-
-import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
-
 public abstract class SqlStorage {
 
     private static Dbms dbms;
     private static DataSource dbSource;
     private static boolean init = false;
-    private static HashMap<String, SqlUserStorage> userStores = new HashMap<String, SqlUserStorage>();
-    private static Map<String, SqlGroupStorage> groupStores = new HashMap<String, SqlGroupStorage>();
-    private static Map<String, Integer> worldMap = new HashMap<String, Integer>();
-    private static final List<String> create = new ArrayList<String>(8);
+    private static final ConcurrentMap<String, SqlUserStorage> userStores = new ConcurrentHashMap<String, SqlUserStorage>();
+    private static final ConcurrentMap<String, SqlGroupStorage> groupStores = new ConcurrentHashMap<String, SqlGroupStorage>();
+    private static final IdDictionary dictionary = new IdDictionary();
+    private static final EffectivePermissions effective = new EffectivePermissions();
+    private static final SingleFlight<String, Integer> worldLoads = new SingleFlight<String, Integer>();
+    private static final SingleFlight<String, Integer> entryLoads = new SingleFlight<String, Integer>();
+    private static final SingleFlight<String, Integer> entryFinds = new SingleFlight<String, Integer>();
+    // Entries known not to exist, with the time the knowledge expires
+    private static final ConcurrentMap<String, Long> missingEntries = new ConcurrentHashMap<String, Long>();
+    private static final int missingEntriesMax = 4096;
     static final String getWorld = "SELECT worldid FROM PrWorlds WHERE worldname = ?;";
     static final String getEntry = "SELECT entryid FROM PrEntries WHERE worldid = ? AND type = ? AND name = ?;";
     static final String createWorld = "INSERT IGNORE INTO PrWorlds (worldname) VALUES (?);";
     static final String createEntry = "INSERT IGNORE INTO PrEntries (worldid,type,name) VALUES (?,?,?);";
     static final String getWorldName = "SELECT worldname FROM PrWorlds WHERE worldid = ?;";
-    static final String getEntryName = "SELECT name, worldid FROM PrEntries WHERE entryid = ?;";
+    static final String getEntryName = "SELECT name, worldid, type FROM PrEntries WHERE entryid = ?;";
+    static final String entryExists = "SELECT 1 FROM PrEntries WHERE entryid = ?;";
 
     // XXX: Connection objects aren't really thread safe. Either use connection pools or ThreadLocal
-    private static ConnectionPool pool;
-
-    static {
-        create.add("CREATE TABLE IF NOT EXISTS PrWorlds (" + " worldid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " worldname VARCHAR(32) NOT NULL UNIQUE" + ")");
-        create.add("CREATE TABLE IF NOT EXISTS PrEntries (" + " entryid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " name VARCHAR(32) NOT NULL," + " worldid INTEGER NOT NULL," + " type TINYINT NOT NULL," + " CONSTRAINT NameWorld UNIQUE (name, worldid, type)," + " ENTRYINDEX" + " FOREIGN KEY(worldid) REFERENCES PrWorlds(worldid) ON DELETE CASCADE ON UPDATE CASCADE" + ")");
-        create.add("CREATE TABLE IF NOT EXISTS PrPermissions (" + " permid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " permstring VARCHAR(64) NOT NULL," + " entryid INTEGER NOT NULL," + " CONSTRAINT PrEntryPerm UNIQUE (entryid, permstring)," + " FOREIGN KEY(entryid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")");
-        create.add("CREATE TABLE IF NOT EXISTS PrInheritance (" + " uinheritid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " childid INTEGER NOT NULL," + " parentid INTEGER NOT NULL," + " parentorder INTEGER NOT NULL," + " CONSTRAINT PrParent UNIQUE (childid, parentid)," + " CONSTRAINT PrOrderedInheritance UNIQUE (childid, parentorder)," + " CONSTRAINT PrNoSelfInherit CHECK (childid <> parentid)," + " FOREIGN KEY(childid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE," + " FOREIGN KEY(parentid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")");
-        create.add("CREATE TABLE IF NOT EXISTS PrWorldBase (" + " worldid INTEGER NOT NULL," + " defaultid INTEGER," + " FOREIGN KEY(worldid) REFERENCES PrWorlds(worldid) ON DELETE CASCADE ON UPDATE CASCADE," + " FOREIGN KEY(defaultid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")");
-        create.add("CREATE TABLE IF NOT EXISTS PrData (" + " dataid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " entryid INTEGER NOT NULL ," + " path VARCHAR(64) NOT NULL," + " data VARCHAR(64) NOT NULL," + " CONSTRAINT PrDataUnique UNIQUE (entryid, path)," + " FOREIGN KEY(entryid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")");
-        create.add("CREATE TABLE IF NOT EXISTS PrTracks (" + " trackid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " trackname VARCHAR(64) NOT NULL UNIQUE," + " worldid INTEGER NOT NULL," + " CONSTRAINT TracksUnique UNIQUE (trackid, worldid)," + " FOREIGN KEY(worldid) REFERENCES PrWorlds(worldid) ON DELETE CASCADE ON UPDATE CASCADE" + ")");
-        create.add("CREATE TABLE IF NOT EXISTS PrTrackGroups (" + " trackgroupid INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT," + " trackid INTEGER NOT NULL," + " gid INTEGER NOT NULL," + " groupOrder INTEGER NOT NULL," + " CONSTRAINT TrackGroupsUnique UNIQUE (trackname, gid)," + " FOREIGN KEY(trackid) REFERENCES PrTracks(trackid) ON DELETE CASCADE ON UPDATE CASCADE," + " FOREIGN KEY(gid) REFERENCES PrEntries(entryid) ON DELETE CASCADE ON UPDATE CASCADE" + ")");
-    }
+    private static volatile ConnectionPool pool;
+    private static volatile ConnectionPool readPool;
+    private static volatile WriteBehindQueue writeQueue;
+    private static volatile DbExecutor executor;
+    private static volatile ChangeLog changeLog;
+    private static volatile Settings settings = new Settings();
 
     static Dbms getDbms() {
         return dbms;
     }
 
     public synchronized static void init(String dbmsName, String uri, String username, String password, int reloadDelay) throws Exception {
+        init(dbmsName, uri, username, password, reloadDelay, new Settings());
+    }
+
+    public synchronized static void init(String dbmsName, String uri, String username, String password, int reloadDelay, Settings settings) throws Exception {
         if (init) {
             return;
         }
 
         System.out.println("[Permissions] Initializing Permissions 3 SQL interface.");
+        SqlStorage.settings = settings;
         // SqlStorage.reloadDelay = reloadDelay;
         try {
             dbms = Dbms.valueOf(dbmsName);
@@ -70,43 +72,83 @@ public abstract class SqlStorage {
         } catch (ClassNotFoundException e) {
             throw new Exception("[Permissions] Unable to load SQL driver!", e);
         }
-        dbSource = dbms.getSource(username, password, uri);
-        pool = ConnectionPool.newInstance(dbSource, 5);
-        verifyAndCreateTables();
+        dbSource = dbms.getSource(username, password, uri, settings.tuning);
+        boolean splitReaders = dbms == Dbms.SQLITE && settings.sqliteSplitReaders;
+        ConnectionPool.Settings writer = settings.pool.copy();
+        writer.initStatements.addAll(dbms.getInitStatements(settings.tuning, false, splitReaders));
+        if (splitReaders) {
+            // SQLite allows one writer at a time anyway; funnel every write through a single connection
+            writer.name = "writer";
+            writer.maxConnections = 1;
+            writer.minIdle = 1;
+        }
+        pool = ConnectionPool.newInstance(dbSource, writer);
+        // Before anything is written, since the writer already runs with WAL's synchronous default
+        if (splitReaders)
+            enableWal();
+        migrateSchema();
+        ConnectionPool.Settings readers = writer;
+        if (splitReaders) {
+            ConnectionPool.Settings reader = settings.pool.copy();
+            reader.name = "reader";
+            reader.initStatements.addAll(dbms.getInitStatements(settings.tuning, true, true));
+            readPool = ConnectionPool.newInstance(dbms.getReadOnlySource(username, password, uri, settings.tuning), reader);
+            readers = reader;
+        }
+        if (settings.writeBehind) {
+            writeQueue = new WriteBehindQueue(settings.writeBehindDelay);
+            writeQueue.start();
+        }
+        // One async reader per connection of the pool that serves reads
+        executor = new DbExecutor(readers.maxConnections, settings.asyncQueueSize);
         init = true;
-        clearWorldCache();
+        dictionary.load();
+        if (settings.changeLog) {
+            changeLog = new ChangeLog(settings.changeLogInterval, settings.changeLogRetention);
+            changeLog.start();
+        }
     }
 
     public synchronized static void clearWorldCache() // Used for periodic cache
     // flush
     {
-        if (init)
-            worldMap.clear();
+        if (init) {
+            dictionary.invalidate();
+            missingEntries.clear();
+        }
+    }
+
+    /**
+     * Flattened permission lookups over the caches SqlCreator hands out.
+     */
+    public static EffectivePermissions getEffectivePermissions() {
+        return effective;
+    }
+
+    static IdDictionary getDictionary() {
+        return dictionary;
+    }
+
+    private static void migrateSchema() throws SQLException {
+        Connection dbConn = SqlStorage.getConnection();
+        try {
+            new SchemaMigrator(dbms).migrate(dbConn);
+        } finally {
+            dbConn.close();
+        }
     }
 
-    private static void verifyAndCreateTables() throws SQLException {
+    private static void enableWal() throws SQLException {
         Connection dbConn = null;
         Statement s = null;
         try {
             dbConn = SqlStorage.getConnection();
             s = dbConn.createStatement();
-            if (dbms == Dbms.SQLITE) {
-                s.execute("PRAGMA foreign_keys = ON;");
-            }
-            // TODO: Verify stuff
-            String engine = dbms.equals(Dbms.MYSQL) ? " ENGINE = InnoDB;" : ";";
-            for (String state : create) {
-                if (dbms == Dbms.MYSQL) {
-                    state = state.replace("AUTOINCREMENT", "AUTO_INCREMENT");
-                    state = state.replace(" ENTRYINDEX", " INDEX pr_entryname_index(name),");
-                } else {
-                    state = state.replace(" ENTRYINDEX", "");
-                }
-                s.executeUpdate(state + engine);
-            }
-            if (dbms != Dbms.MYSQL) {
-                s.executeUpdate("CREATE INDEX IF NOT EXISTS pr_entry_index ON PrEntries(name);");
-            }
+            // Persistent in the database file; readers no longer block behind the writer
+            ResultSet rs = s.executeQuery("PRAGMA journal_mode = WAL;");
+            if (rs.next() && !"wal".equalsIgnoreCase(rs.getString(1)))
+                System.err.println("[Permissions] SQLite refused WAL journaling (mode is '" + rs.getString(1) + "'). Readers may block behind writes.");
+            rs.close();
         } finally {
             if (s != null)
                 s.close();
@@ -119,116 +161,317 @@ public abstract class SqlStorage {
         return dbSource;
     }
 
-    static int getWorld(String name) {
-        if (worldMap.containsKey(name)) {
-            // System.out.println(worldMap.get(name));
-            return worldMap.get(name);
-        }
-        Object[] params = new Object[] { name };
-        List<Object[]> results = runQuery(getWorld, params, true, 1);
-        if (results.isEmpty()) {
-            System.out.println("[Permissions] Creating world '" + name + "'.");
-            runUpdate(createWorld, params);
-            results = runQuery(getWorld, params, true, 1);
-        }
-        int id = -1;
-        Iterator<Object[]> iter = results.iterator();
-        // System.out.println(results);
-        if (iter.hasNext()) {
-            Object o = iter.next()[0];
-            if (o instanceof Integer) {
-                id = (Integer) o;
+    static int getWorld(final String name) {
+        int id = dictionary.getWorldId(name);
+        if (id != -1)
+            return id;
+        return worldLoads.run(name, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return loadWorld(name);
             }
+        });
+    }
+
+    private static int loadWorld(String name) {
+        // Another thread may have finished loading between our miss and joining the flight
+        int id = dictionary.getWorldId(name);
+        if (id != -1)
+            return id;
+        // A dictionary miss is almost always a new world, so try the insert first
+        boolean[] created = { false };
+        id = insertForId(createWorld, new Object[] { name }, created);
+        if (created[0])
+            System.out.println("[Permissions] Creating world '" + name + "'.");
+        if (id == -1)
+            id = queryWorld(name);
+        if (id != -1) {
+            dictionary.putWorld(id, name);
+            missingEntries.remove("w:" + name);
         }
-        worldMap.put(name, id);
         return id;
     }
 
-    static int getEntry(String world, String name, boolean isGroup) {
-        SqlEntryStorage ses = isGroup ? getGroupStorage(world) : getUserStorage(world);
-        Integer cachedId = ses.getCachedId(name);
-        if (cachedId != null) {
-            return cachedId;
+    /**
+     * Looks a world up without creating it. Returns -1 if it doesn't exist;
+     * like {@link #findEntry}, that answer is remembered for a while.
+     */
+    static int findWorld(String name) {
+        int id = dictionary.getWorldId(name);
+        if (id != -1)
+            return id;
+        String key = "w:" + name;
+        Long expires = missingEntries.get(key);
+        if (expires != null) {
+            if (System.currentTimeMillis() < expires)
+                return -1;
+            missingEntries.remove(key, expires);
         }
-        int worldid = getWorld(world);
-        Object[] params = new Object[] { worldid, (byte) (isGroup ? 1 : 0), name };
-        List<Object[]> results = runQuery(getEntry, params, true, 1);
-        if (results.isEmpty()) {
-            System.out.println("[Permissions] Creating " + (isGroup ? "group" : "user") + " '" + name + "' in world '" + world + "'.");
-            runUpdate(createEntry, params);
-            results = runQuery(getEntry, params, true, 1);
+        id = queryWorld(name);
+        if (id != -1)
+            dictionary.putWorld(id, name);
+        else
+            rememberMissing(key);
+        return id;
+    }
+
+    private static int queryWorld(final String name) {
+        final int[] id = { -1 };
+        query(getWorld, new RowHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                stmt.setString(1, name);
+            }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                id[0] = rs.getInt(1);
+                return false;
+            }
+        });
+        return id[0];
+    }
+
+    static int getEntry(final String world, final String name, final boolean isGroup) {
+        final int worldid = getWorld(world);
+        int id = dictionary.getEntryId(worldid, isGroup, name);
+        if (id != -1)
+            return id;
+        return entryLoads.run(worldid + (isGroup ? ":g:" : ":u:") + name, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return loadEntry(world, worldid, name, isGroup);
+            }
+        });
+    }
+
+    /**
+     * Looks an entry up without creating it. Returns -1 if it doesn't exist;
+     * that answer is remembered for a while, so probing unknown names costs
+     * one read per name and never writes.
+     */
+    static int findEntry(final int worldid, final String name, final boolean isGroup) {
+        int id = dictionary.getEntryId(worldid, isGroup, name);
+        if (id != -1)
+            return id;
+        final String key = worldid + (isGroup ? ":g:" : ":u:") + name;
+        Long expires = missingEntries.get(key);
+        if (expires != null) {
+            if (System.currentTimeMillis() < expires)
+                return -1;
+            missingEntries.remove(key, expires);
         }
-        int id = -1;
-        Iterator<Object[]> iter = results.iterator();
-        if (iter.hasNext()) {
-            Object o = iter.next()[0];
-            if (o instanceof Integer) {
-                id = (Integer) o;
+        return entryFinds.run(key, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int id = dictionary.getEntryId(worldid, isGroup, name);
+                if (id != -1)
+                    return id;
+                id = queryEntry(worldid, isGroup, name);
+                if (id != -1)
+                    dictionary.putEntry(id, name, worldid, isGroup);
+                else
+                    rememberMissing(key);
+                return id;
             }
+        });
+    }
+
+    private static void rememberMissing(String key) {
+        long ttl = settings.negativeCacheTtl;
+        if (ttl <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        if (missingEntries.size() >= missingEntriesMax) {
+            for (Map.Entry<String, Long> entry : missingEntries.entrySet()) {
+                if (now >= entry.getValue())
+                    missingEntries.remove(entry.getKey(), entry.getValue());
+            }
+            // Still full of live entries: someone is probing many names, start over
+            if (missingEntries.size() >= missingEntriesMax)
+                missingEntries.clear();
         }
-        return id;
+        missingEntries.put(key, now + ttl);
+    }
+
+    static void forgetMissingEntries() {
+        missingEntries.clear();
     }
 
-    static String getWorldName(int id) {
-        List<Object[]> results = runQuery(getWorldName, new Object[] { id }, true, 1);
-        Iterator<Object[]> iter = results.iterator();
-        String name = "Error";
-        if (iter.hasNext()) {
-            Object o = iter.next()[0];
-            if (o instanceof String)
-                name = (String) o;
+    private static int loadEntry(String world, int worldid, String name, boolean isGroup) {
+        int id = dictionary.getEntryId(worldid, isGroup, name);
+        if (id != -1)
+            return id;
+        boolean[] created = { false };
+        id = insertForId(createEntry, new Object[] { worldid, (byte) (isGroup ? 1 : 0), name }, created);
+        if (created[0])
+            System.out.println("[Permissions] Creating " + (isGroup ? "group" : "user") + " '" + name + "' in world '" + world + "'.");
+        if (id == -1)
+            id = queryEntry(worldid, isGroup, name);
+        if (id != -1) {
+            dictionary.putEntry(id, name, worldid, isGroup);
+            missingEntries.remove(worldid + (isGroup ? ":g:" : ":u:") + name);
         }
-        worldMap.put(name, id);
-        return name;
+        return id;
+    }
+
+    private static int queryEntry(final int worldid, final boolean isGroup, final String name) {
+        final int[] id = { -1 };
+        query(getEntry, new RowHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                stmt.setInt(1, worldid);
+                stmt.setByte(2, (byte) (isGroup ? 1 : 0));
+                stmt.setString(3, name);
+            }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                id[0] = rs.getInt(1);
+                return false;
+            }
+        });
+        return id[0];
     }
 
-    static NameWorldId getEntryName(int id) {
-        List<Object[]> results = runQuery(getEntryName, new Object[] { id }, true, 1, 2);
-        Iterator<Object[]> iter = results.iterator();
-        NameWorldId nw = new NameWorldId();
-        if (!iter.hasNext()) {
-            nw.name = "Error";
-            nw.worldid = -1;
+    static String getWorldName(final int id) {
+        String cached = dictionary.getWorldName(id);
+        if (cached != null)
+            return cached;
+        final String[] name = { null };
+        query(getWorldName, new RowHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                stmt.setInt(1, id);
+            }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                name[0] = rs.getString(1);
+                return false;
+            }
+        });
+        if (name[0] == null)
+            return "Error";
+        dictionary.putWorld(id, name[0]);
+        return name[0];
+    }
+
+    static NameWorldId getEntryName(final int id) {
+        final NameWorldId nw = new NameWorldId();
+        IdDictionary.Entry cached = dictionary.getEntry(id);
+        if (cached != null) {
+            nw.name = cached.name;
+            nw.worldid = cached.worldid;
             return nw;
         }
-        Object[] row = iter.next();
-        Object oName = row[0]; //Offset by -1 due to zero-indexed array
-        Object oWId = row[1];
-        String name = null;
-        int worldid = -1;
-        if (oName instanceof String && oWId instanceof Integer) {
-            name = (String) oName;
-            worldid = (Integer) oWId;
-        }
-        nw.name = name;
-        nw.worldid = worldid;
+        nw.name = "Error";
+        nw.worldid = -1;
+        query(getEntryName, new RowHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                stmt.setInt(1, id);
+            }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                nw.name = rs.getString(1);
+                nw.worldid = rs.getInt(2);
+                dictionary.putEntry(id, nw.name, nw.worldid, rs.getByte(3) == 1);
+                return false;
+            }
+        });
         return nw;
     }
 
+    /**
+     * Whether a write failed because an entry it references is gone, e.g.
+     * deleted by another server while the change log is off.
+     */
+    static boolean isMissingEntry(SQLException e) {
+        String message = e.getMessage();
+        return e.getErrorCode() == 1452 || (message != null && message.contains("foreign key constraint failed"));
+    }
+
+    /**
+     * Drops the dictionary's stale name to id mapping of an entry and
+     * resolves its name again, re-creating the entry if it is gone. Returns
+     * the entry's current id, or -1 if the old id is unknown.
+     */
+    static int reresolveEntry(int id) {
+        IdDictionary.Entry e = dictionary.getEntry(id);
+        if (e == null)
+            return -1;
+        dictionary.forgetName(id);
+        return getEntry(getWorldName(e.worldid), e.name, e.group);
+    }
+
+    /**
+     * MySQL's INSERT IGNORE turns a foreign key failure into a warning, so an
+     * insert that changed nothing may have hit a deleted entry rather than an
+     * existing row. That case is thrown as the foreign key error it hides.
+     */
+    static void checkInserted(Connection dbConn, String statement, int count, final int entryid) throws SQLException {
+        if (count != 0 || entryid == -1 || dbms != Dbms.MYSQL || !statement.startsWith("INSERT IGNORE"))
+            return;
+        final boolean[] found = { false };
+        boolean ok = query(dbConn, entryExists, new RowHandler() {
+            @Override
+            void bind(PreparedStatement stmt) throws SQLException {
+                stmt.setInt(1, entryid);
+            }
+
+            @Override
+            boolean row(ResultSet rs) throws SQLException {
+                found[0] = true;
+                return false;
+            }
+        });
+        if (ok && !found[0])
+            throw new SQLException("Entry " + entryid + " no longer exists", "23000", 1452);
+    }
+
     static SqlUserStorage getUserStorage(String world) {
-        if (userStores.containsKey(world)) {
-            return userStores.get(world);
+        SqlUserStorage sus = userStores.get(world);
+        if (sus != null) {
+            return sus;
         }
-        SqlUserStorage sus = new SqlUserStorage(world, getWorld(world));
-        userStores.put(sus.getWorld(), sus);
-        return sus;
+        // Storages are cheap to build; a losing racer's copy is simply dropped
+        sus = new SqlUserStorage(world, getWorld(world));
+        SqlUserStorage raced = userStores.putIfAbsent(world, sus);
+        return raced == null ? sus : raced;
     }
 
     static SqlGroupStorage getGroupStorage(String world) {
-        if (groupStores.containsKey(world)) {
-            return groupStores.get(world);
+        SqlGroupStorage sgs = groupStores.get(world);
+        if (sgs != null) {
+            return sgs;
         }
-        SqlGroupStorage sgs = new SqlGroupStorage(world, getWorld(world));
-        groupStores.put(sgs.getWorld(), sgs);
-        return sgs;
+        sgs = new SqlGroupStorage(world, getWorld(world));
+        SqlGroupStorage raced = groupStores.putIfAbsent(world, sgs);
+        return raced == null ? sgs : raced;
     }
 
     public synchronized static void closeAll() {
         if (init) {
+            // Async writes feed the write-behind queue, so drain them first
+            executor.shutdown(10000L);
+            executor = null;
+            if (changeLog != null)
+                changeLog.shutdown();
+            changeLog = null;
+            if (writeQueue != null)
+                writeQueue.shutdown();
+            writeQueue = null;
             userStores.clear();
             groupStores.clear();
-            worldMap.clear();
+            effective.reset();
+            dictionary.clear();
+            missingEntries.clear();
             pool.closeAll();
+            if (readPool != null)
+                readPool.closeAll();
+            readPool = null;
             dbSource = null;
             init = false;
         }
@@ -238,64 +481,121 @@ public abstract class SqlStorage {
         return pool.getConnection();
     }
 
+    /**
+     * The settings init was called with.
+     */
+    static Settings getSettings() {
+        return settings;
+    }
+
+    public static boolean isUserCacheEvictOnQuit() {
+        return settings.userCacheEvictOnQuit;
+    }
+
+    static DbExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * The cross-server change log, or null if it is disabled.
+     */
+    static ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    static WriteBehindQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * Connection for statements that never write. Served by the read-only
+     * pool in split SQLite mode, otherwise the same as getConnection().
+     */
+    static Connection getReadConnection() throws SQLException {
+        ConnectionPool p = readPool;
+        return p == null ? pool.getConnection() : p.getConnection();
+    }
+
+    public static PoolMetrics getPoolMetrics() {
+        ConnectionPool p = pool;
+        return p == null ? null : p.getMetrics();
+    }
+
+    public static PoolMetrics getReadPoolMetrics() {
+        ConnectionPool p = readPool;
+        return p == null ? getPoolMetrics() : p.getMetrics();
+    }
+
+    public static class Settings {
+        public ConnectionPool.Settings pool = new ConnectionPool.Settings();
+        public TuningProfile tuning = new TuningProfile();
+        public boolean cached = true; // Storages are wrapped in CachedStorage; without it writes reach the database directly
+        public boolean sqliteSplitReaders = false; // WAL journaling, one writer connection and a read-only reader pool
+        public boolean writeBehind = false; // Commit mutations from a background thread; uncached reads may lag behind
+        public long writeBehindDelay = 50L; // ms a batch waits for further writes to merge
+        public int asyncQueueSize = 1024; // Calls AsyncStorage may queue per lane before rejecting
+        public boolean changeLog = false; // Log mutations to PrChangeLog and drop entries other servers changed from the caches
+        public long changeLogInterval = 2000L; // ms between polls of the change log
+        public long changeLogRetention = 100000L; // Rows kept in PrChangeLog when pruning
+        public int userCacheMaxEntries = 0; // Users cached per world before the least recently used are evicted; 0 for no limit
+        public long userCacheExpireAfterAccess = 0L; // ms a cached user may go unused before eviction; 0 for never
+        public boolean userCacheEvictOnQuit = true; // Drop a player's cached data when they leave
+        public long negativeCacheTtl = 30000L; // ms a lookup of a missing entry is remembered; 0 to always ask the database
+    }
+
     public static class NameWorldId {
         public int worldid;
         public String name;
     }
 
-    static List<Object[]> runQuery(String statement, Object[] params, boolean single, int... dataCols) {
+    /**
+     * Runs a query on a read connection and streams its rows into the handler.
+     * Returns false if the query failed.
+     */
+    static boolean query(String statement, RowHandler handler) {
         Connection dbConn;
         try {
-            dbConn = getConnection();
+            dbConn = getReadConnection();
         } catch (SQLException e) {
             e.printStackTrace();
-            return new ArrayList<Object[]>();
+            return false;
         }
-        List<Object[]> data = runQuery(dbConn, statement, params, single, dataCols);
+        boolean ok = query(dbConn, statement, handler);
         try {
             if (dbConn != null)
                 dbConn.close();
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return data;
+        return ok;
     }
 
-    static List<Object[]> runQuery(Connection dbConn, String statement, Object[] params, boolean single, int... dataCols) {
-        if (dataCols == null || dataCols.length == 0) {
-            return null;
-        }
-        List<Object[]> results = new LinkedList<Object[]>();
-
+    static boolean query(Connection dbConn, String statement, RowHandler handler) {
         PreparedStatement stmt = null;
+        ResultSet rs = null;
         try {
             stmt = dbConn.prepareStatement(statement);
-            fillStatement(stmt, params);
-            if (stmt.execute()) {
-                ResultSet rs = stmt.getResultSet();
-                while (rs.next()) {
-                    Object[] row = new Object[dataCols.length];
-                    for (int i = 0; i < dataCols.length; i++) {
-                        row[i] = rs.getObject(dataCols[i]);
-                        if (dbms == Dbms.MYSQL && rs.isClosed())
-                            break;
-                    }
-                    results.add(row);
-                    if (single)
-                        break;
-                }
+            stmt.clearParameters();
+            handler.bind(stmt);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                if (!handler.row(rs))
+                    break;
             }
+            return true;
         } catch (SQLException e) {
             e.printStackTrace();
+            return false;
         } finally {
-            if (stmt != null)
-                try {
+            try {
+                if (rs != null)
+                    rs.close();
+                if (stmt != null)
                     stmt.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
         }
-        return results;
     }
 
     static int runUpdate(String statement, Object[] params) {
@@ -318,27 +618,155 @@ public abstract class SqlStorage {
     }
     
     static int runUpdate(Connection dbConn, String statement, Object[] params) {
-        String sql = dbms == Dbms.SQLITE ? statement.replace("INSERT IGNORE", "INSERT OR IGNORE") : statement;
-        int result = -1;
+        try {
+            return executeUpdate(dbConn, statement, params);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
 
-        PreparedStatement stmt = null;
+    /**
+     * runUpdate for callers inside a transaction: failures are thrown so the
+     * caller can roll back.
+     */
+    static int executeUpdate(Connection dbConn, String statement, Object[] params) throws SQLException {
+        PreparedStatement stmt = dbConn.prepareStatement(dialect(statement));
         try {
-            stmt = dbConn.prepareStatement(sql);
             fillStatement(stmt, params);
             stmt.execute();
-            result = stmt.getUpdateCount();
+            return stmt.getUpdateCount();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Runs an insert and returns the id of the inserted row, or -1 if no row
+     * was inserted (an ignored insert of an existing row, or an error).
+     * created[0] is set if a row was inserted.
+     */
+    private static int insertForId(String statement, Object[] params, boolean[] created) {
+        Connection dbConn = null;
+        PreparedStatement stmt = null;
+        int id = -1;
+        try {
+            dbConn = getConnection();
+            stmt = dbConn.prepareStatement(dialect(statement), Statement.RETURN_GENERATED_KEYS);
+            fillStatement(stmt, params);
+            int count = stmt.executeUpdate();
+            created[0] = count == 1;
+            // SQLite's generated key is last_insert_rowid(), which is stale after an ignored insert
+            if (created[0]) {
+                ResultSet keys = stmt.getGeneratedKeys();
+                try {
+                    if (keys.next())
+                        id = keys.getInt(1);
+                } finally {
+                    keys.close();
+                }
+            }
         } catch (SQLException e) {
             e.printStackTrace();
-            result = -1;
         } finally {
-            if (stmt != null)
-                try {
+            try {
+                if (stmt != null)
                     stmt.close();
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+                if (dbConn != null)
+                    dbConn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Runs one statement once per parameter row as a single JDBC batch inside
+     * a transaction. Returns the update count of every row, or an array of
+     * Statement.EXECUTE_FAILED if the batch was rolled back. MySQL may report
+     * Statement.SUCCESS_NO_INFO for rows of a rewritten batch.
+     */
+    static int[] runBatch(String statement, List<Object[]> rows) {
+        int[] counts = runBatch(null, null, statement, rows);
+        if (counts == null) {
+            counts = new int[rows.size()];
+            Arrays.fill(counts, Statement.EXECUTE_FAILED);
+        }
+        return counts;
+    }
+
+    /**
+     * Like {@link #runBatch(String, List)}, with a single statement run first
+     * in the same transaction, e.g. to clear the rows the batch replaces.
+     * Returns null if the transaction was rolled back.
+     */
+    static int[] runBatch(String first, Object[] firstParams, String statement, List<Object[]> rows) {
+        if (first == null && rows.isEmpty())
+            return new int[0];
+        Connection dbConn = null;
+        try {
+            dbConn = getConnection();
+            if (dbConn == null)
+                return null;
+            dbConn.setAutoCommit(false);
+            try {
+                if (first != null)
+                    executeUpdate(dbConn, first, firstParams);
+                int[] counts = runBatch(dbConn, statement, rows);
+                dbConn.commit();
+                return counts;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                dbConn.rollback();
+            } finally {
+                dbConn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (dbConn != null)
+                    dbConn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Batch form of executeUpdate: runs the statement once per parameter row
+     * as one JDBC batch, throwing on failure so the caller can roll back.
+     */
+    static int[] runBatch(Connection dbConn, String statement, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty())
+            return new int[0];
+        PreparedStatement stmt = dbConn.prepareStatement(dialect(statement));
+        try {
+            stmt.clearParameters();
+            for (Object[] params : rows) {
+                // No clearParameters() per row: sqlite-jdbc clears the pending batch with it
+                bindRow(stmt, params);
+                stmt.addBatch();
+            }
+            return stmt.executeBatch();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static String dialect(String statement) {
+        return dbms == Dbms.SQLITE ? statement.replace("INSERT IGNORE", "INSERT OR IGNORE") : statement;
+    }
+
+    private static void bindRow(PreparedStatement stmt, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] == null)
+                stmt.setNull(i + 1, Types.NULL);
+            else
+                setParam(stmt, i + 1, params[i]);
         }
-        return result;
     }
 
     static void fillStatement(PreparedStatement stmt, Object[] params) throws SQLException {
@@ -348,43 +776,22 @@ public abstract class SqlStorage {
         for (int i = 0; i < params.length; i++) {
             Object param = params[i];
             if (param != null) {
-                stmt.setObject(i + 1, param);
+                setParam(stmt, i + 1, param);
             }
         }
     }
-}
-
-enum Dbms {
-
-    SQLITE("org.sqlite.JDBC"), MYSQL("com.mysql.jdbc.Driver");
-    private final String driver;
-
-    Dbms(String driverClass) {
-        this.driver = driverClass;
-    }
 
-    public String getDriver() {
-        return driver;
-    }
-
-    public DataSource getSource(String username, String password, String url) {
-        switch (this) {
-        case MYSQL:
-            MysqlDataSource mds = new MysqlDataSource();
-            mds.setUser(username);
-            mds.setPassword(password);
-            mds.setUrl(url);
-            mds.setCachePreparedStatements(true);
-            mds.setPreparedStatementCacheSize(21);
-            mds.setUseServerPrepStmts(true);
-            // mds.setPreparedStatementCacheSqlLimit(308);
-            return mds;
-        default:
-        case SQLITE:
-            SQLiteDataSource sds = new SQLiteDataSource();
-            sds.setUrl(url);
-            sds.setEnforceForeinKeys(true);
-            return sds;
-        }
+    private static void setParam(PreparedStatement stmt, int index, Object param) throws SQLException {
+        // Typed setters skip the driver's setObject type dispatch
+        if (param instanceof Integer)
+            stmt.setInt(index, (Integer) param);
+        else if (param instanceof String)
+            stmt.setString(index, (String) param);
+        else if (param instanceof Byte)
+            stmt.setByte(index, (Byte) param);
+        else if (param instanceof Long)
+            stmt.setLong(index, (Long) param);
+        else
+            stmt.setObject(index, param);
     }
 }
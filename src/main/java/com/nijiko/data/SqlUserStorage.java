@@ -17,14 +17,7 @@ public class SqlUserStorage extends SqlEntryStorage implements UserStorage {
 
     @Override
     protected int getId(String name) throws SQLException {
-      int uid = -1;
-      if (idCache.containsKey(name))
-          uid = idCache.get(name);
-      else {
-          uid = SqlStorage.getEntry(world, name, false);
-          idCache.put(name, uid);
-      }
-      return uid;
+        return SqlStorage.getEntry(world, name, false);
     }
 
 }
@@ -0,0 +1,64 @@
+package com.nijiko.data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU of idle prepared statements belonging to a single physical
+ * connection, keyed by SQL text. Statements are removed while checked out, so
+ * two concurrent users of the same SQL on one connection never share a cursor.
+ */
+final class StatementCache {
+
+    private final int maxSize;
+    private final LinkedHashMap<String, WrappedStatement> idle;
+    private boolean closed = false;
+
+    StatementCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.idle = new LinkedHashMap<String, WrappedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WrappedStatement> eldest) {
+                if (size() > StatementCache.this.maxSize) {
+                    eldest.getValue().destroy();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized WrappedStatement take(String key) {
+        WrappedStatement stmt = idle.remove(key);
+        if (stmt != null)
+            stmt.reopen();
+        return stmt;
+    }
+
+    synchronized boolean offer(WrappedStatement stmt) {
+        if (closed || maxSize <= 0 || idle.containsKey(stmt.getKey()))
+            return false;
+        idle.put(stmt.getKey(), stmt);
+        return true;
+    }
+
+    void clear() {
+        List<WrappedStatement> stmts;
+        synchronized (this) {
+            closed = true;
+            stmts = new ArrayList<WrappedStatement>(idle.values());
+            idle.clear();
+        }
+        for (WrappedStatement stmt : stmts) {
+            stmt.destroy();
+        }
+    }
+
+    synchronized int size() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,46 @@
+package com.nijiko.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Driver and database settings applied by {@link Dbms} when a data source or
+ * physical connection is created. Defaults favour throughput; every value can
+ * be overridden under permissions.storage.tuning in the config.
+ */
+public class TuningProfile {
+
+    // SQLite pragmas, run on every new physical connection. Null skips the pragma.
+    // sqlite-jdbc 3.7.2 bundles SQLite 3.7.2, which has no busy_timeout or mmap_size pragma
+    // Persistent in the database file, so it is left alone unless set; split-readers switches to WAL itself
+    public String journalMode = null;
+    // Null picks NORMAL under WAL, where a crash can only lose the last commits, and leaves SQLite's FULL otherwise
+    public String synchronous = null;
+    public Integer cacheSize = 8000; // pages
+    public String tempStore = "MEMORY";
+    public Integer busyTimeout = 5000; // ms a connection waits on a locked database, set through the driver in whole seconds
+
+    // MySQL Connector/J properties
+    public boolean rewriteBatchedStatements = true;
+    public boolean useLocalSessionState = true;
+    public boolean cacheServerConfiguration = true;
+    public int preparedStatementCacheSize = 250;
+    public int connectTimeout = 5000; // ms
+    public int socketTimeout = 30000; // ms, 0 waits forever
+
+    List<String> getSqlitePragmas(boolean readOnly, boolean wal) {
+        List<String> pragmas = new ArrayList<String>(4);
+        if (journalMode != null && !readOnly)
+            pragmas.add("PRAGMA journal_mode = " + journalMode + ";");
+        String sync = synchronous;
+        if (sync == null && (wal || "WAL".equalsIgnoreCase(journalMode)))
+            sync = "NORMAL";
+        if (sync != null)
+            pragmas.add("PRAGMA synchronous = " + sync + ";");
+        if (cacheSize != null)
+            pragmas.add("PRAGMA cache_size = " + cacheSize + ";");
+        if (tempStore != null)
+            pragmas.add("PRAGMA temp_store = " + tempStore + ";");
+        return pragmas;
+    }
+}
@@ -0,0 +1,22 @@
+package com.nijiko.data;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every entry of one type in one world, read with one query per table so a
+ * {@link CachedStorage} can be filled in a single pass.
+ */
+final class WorldPreload {
+
+    final Map<String, Integer> ids = new HashMap<String, Integer>();
+    final Map<String, Set<String>> permissions = new HashMap<String, Set<String>>();
+    final Map<String, LinkedHashSet<GroupWorld>> parents = new HashMap<String, LinkedHashSet<GroupWorld>>();
+    final Map<String, Map<String, Object>> data = new HashMap<String, Map<String, Object>>();
+
+    int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,371 @@
+package com.nijiko.data;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.nijiko.permissions.EntryType;
+
+/**
+ * Collects SqlEntryStorage mutations and commits them from a background
+ * thread, one transaction per batch. Writes are keyed by the row they touch,
+ * so a later write to the same row replaces the pending one (repeated
+ * setData, add then remove) in its place in the queue, before it ever
+ * reaches the database.
+ */
+final class WriteBehindQueue implements Runnable {
+
+    private static final Logger log = Logger.getLogger("Minecraft");
+    private final LinkedHashMap<String, Write> pending = new LinkedHashMap<String, Write>();
+    private List<Write> committing = null; // The batch the writer is working on
+    private final long delay;
+    private final Thread writer = new Thread(this, "Permissions SQL writer");
+    private long enqueued = 0;
+    private long committed = 0;
+    private boolean flushRequested = false;
+    private volatile boolean running = true;
+
+    WriteBehindQueue(long delay) {
+        this.delay = delay;
+        writer.setDaemon(true);
+    }
+
+    void start() {
+        writer.start();
+    }
+
+    synchronized void submit(Write write) {
+        if (!running) {
+            execute(write);
+            return;
+        }
+        write.seq = ++enqueued;
+        if (write.scope != null) {
+            for (Iterator<String> iter = pending.keySet().iterator(); iter.hasNext();) {
+                if (iter.next().startsWith(write.scope))
+                    iter.remove();
+            }
+        }
+        Write older = pending.get(write.key);
+        // Taking over the older write's slot keeps rows in the order they were first written
+        if (older != null && !write.replaces(older))
+            rekey(older); // Still needed (e.g. a parent removal that reorders a later add); it stays ahead of the new write
+        pending.put(write.key, write);
+        notifyAll();
+    }
+
+    /**
+     * Moves a pending write to a key of its own, keeping its place.
+     */
+    private void rekey(Write older) {
+        LinkedHashMap<String, Write> copy = new LinkedHashMap<String, Write>(pending);
+        pending.clear();
+        for (Map.Entry<String, Write> entry : copy.entrySet()) {
+            String key = entry.getKey();
+            pending.put(key.equals(older.key) ? key + "#" + older.seq : key, entry.getValue());
+        }
+    }
+
+    /**
+     * Blocks until everything submitted before this call has been committed.
+     */
+    void flush() {
+        if (Thread.currentThread() == writer)
+            return;
+        synchronized (this) {
+            long target = enqueued;
+            flushRequested = true;
+            notifyAll();
+            while (committed < target && writer.isAlive()) {
+                try {
+                    wait(1000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    void shutdown() {
+        flush();
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            writer.join(5000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Whether a write to the entry is queued or being committed, so a reload
+     * from the database would miss it.
+     */
+    synchronized boolean isPending(int entryid) {
+        for (Write write : pending.values()) {
+            if (write.entryid == entryid)
+                return true;
+        }
+        if (committing != null) {
+            for (Write write : committing) {
+                if (write.entryid == entryid)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            List<Write> batch;
+            long upTo;
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty() && running)
+                        wait();
+                    // Give closely spaced writes a chance to merge before committing
+                    if (running && !flushRequested && delay > 0)
+                        wait(delay);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                if (pending.isEmpty()) {
+                    if (!running)
+                        return;
+                    continue;
+                }
+                batch = new ArrayList<Write>(pending.values());
+                pending.clear();
+                committing = batch;
+                upTo = enqueued;
+                flushRequested = false;
+            }
+            commit(batch);
+            synchronized (this) {
+                committing = null;
+                committed = upTo;
+                notifyAll();
+            }
+        }
+    }
+
+    private void commit(List<Write> batch) {
+        Connection conn = null;
+        try {
+            conn = SqlStorage.getConnection();
+            if (conn == null)
+                return;
+            conn.setAutoCommit(false);
+            try {
+                try {
+                    applyBatched(conn, batch);
+                    conn.commit();
+                    return;
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    conn.rollback();
+                }
+                // One bad write shouldn't cost the rest of the batch; each retry is its own transaction, so none is left half-applied
+                System.err.println("[Permissions] Write-behind batch of " + batch.size() + " failed, retrying writes individually.");
+                for (Write write : batch) {
+                    try {
+                        write.apply(conn);
+                        conn.commit();
+                    } catch (SQLException e) {
+                        conn.rollback();
+                        dropped(write, e);
+                    }
+                }
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.err.println("[Permissions] Unable to commit " + batch.size() + " queued permission writes.");
+            e.printStackTrace();
+        } finally {
+            if (conn != null)
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    /**
+     * Applies writes in order, sending each run of plain writes that share a
+     * statement as one JDBC batch.
+     */
+    private static void applyBatched(Connection conn, List<Write> batch) throws SQLException {
+        int i = 0;
+        while (i < batch.size()) {
+            Write first = batch.get(i);
+            if (!first.isPlain()) {
+                first.apply(conn);
+                i++;
+                continue;
+            }
+            List<Object[]> rows = new ArrayList<Object[]>();
+            int j = i;
+            while (j < batch.size() && batch.get(j).isPlain() && batch.get(j).statement.equals(first.statement)) {
+                rows.add(batch.get(j).params);
+                j++;
+            }
+            if (rows.size() == 1) {
+                first.apply(conn);
+            } else {
+                int[] counts = SqlStorage.runBatch(conn, first.statement, rows);
+                for (int k = 0; k < counts.length; k++)
+                    SqlStorage.checkInserted(conn, first.statement, counts[k], batch.get(i + k).entryid);
+            }
+            i = j;
+        }
+    }
+
+    /**
+     * Runs a write immediately on its own connection.
+     */
+    static void execute(Write write) {
+        Connection conn = null;
+        try {
+            conn = SqlStorage.getConnection();
+            if (conn == null)
+                return;
+            if (write.atomic) {
+                conn.setAutoCommit(false);
+                try {
+                    write.apply(conn);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } else {
+                write.apply(conn);
+            }
+        } catch (SQLException e) {
+            dropped(write, e);
+        } finally {
+            if (conn != null)
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    /**
+     * Reports a write that failed for good. The caches already show it, so
+     * the entry it touched is dropped from them and reloaded from the
+     * database. A write to an entry deleted behind our back is first retried
+     * against the entry its name resolves to now.
+     */
+    private static void dropped(Write write, SQLException e) {
+        if (write.entryid != -1 && SqlStorage.isMissingEntry(e)) {
+            int id = SqlStorage.reresolveEntry(write.entryid);
+            if (id != -1 && id != write.entryid) {
+                log.warning("[Permissions] Entry " + write.entryid + " no longer exists, writing " + write.key + " to entry " + id + ".");
+                write.retarget(id);
+                execute(write);
+                reload(id, ChangeLog.ENTRY); // The re-created entry only has what has been written to it since
+                return;
+            }
+        }
+        log.log(Level.SEVERE, "[Permissions] Unable to write " + write.key + ", dropping it.", e);
+        reload(write.entryid, write.kind);
+    }
+
+    private static void reload(int entryid, byte kind) {
+        if (entryid == -1)
+            return;
+        IdDictionary dictionary = SqlStorage.getDictionary();
+        IdDictionary.Entry entry = dictionary.getEntry(entryid);
+        if (entry == null)
+            return;
+        EntryType type = entry.group ? EntryType.GROUP : EntryType.USER;
+        SqlStorage.getEffectivePermissions().written(dictionary.getWorldName(entry.worldid), type, entry.name, kind);
+    }
+
+    /**
+     * A single pending mutation. The key names the row it touches; writes
+     * with equal keys are merged, the newer one winning. A write with a scope
+     * also drops every pending write whose key starts with it. The entry id
+     * and change kind name what to reload if the write fails.
+     */
+    static class Write {
+        final String key;
+        final String scope;
+        final String statement;
+        final Object[] params;
+        final boolean atomic;
+        int entryid;
+        final byte kind;
+        long seq;
+
+        Write(String key, String statement, Object[] params) {
+            this(key, -1, (byte) 0, statement, params);
+        }
+
+        Write(String key, int entryid, byte kind, String statement, Object[] params) {
+            this(key, null, false, entryid, kind, statement, params);
+        }
+
+        Write(String key, String scope, boolean atomic, int entryid, byte kind, String statement, Object[] params) {
+            this.key = key;
+            this.scope = scope;
+            this.atomic = atomic;
+            this.entryid = entryid;
+            this.kind = kind;
+            this.statement = statement;
+            this.params = params;
+        }
+
+        void apply(Connection conn) throws SQLException {
+            SqlStorage.checkInserted(conn, statement, SqlStorage.executeUpdate(conn, statement, params), entryid);
+        }
+
+        /**
+         * Points the write at a re-created entry.
+         */
+        void retarget(int id) {
+            if (params != null) {
+                for (int i = 0; i < params.length; i++) {
+                    if (params[i] instanceof Integer && (Integer) params[i] == entryid)
+                        params[i] = id;
+                }
+            }
+            entryid = id;
+        }
+
+        /**
+         * Plain writes are a single statement with parameters and can be batched.
+         */
+        boolean isPlain() {
+            return getClass() == Write.class;
+        }
+
+        /**
+         * Whether this write makes a pending older one with the same key redundant.
+         */
+        boolean replaces(Write older) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.nijikokun.bukkit.Permissions;
+
+import org.bukkit.event.player.PlayerListener;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import com.nijiko.data.SqlStorage;
+
+public class PermissionsPlayerListener extends PlayerListener {
+    @Override
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        if (SqlStorage.isUserCacheEvictOnQuit())
+            SqlStorage.getEffectivePermissions().evictUser(event.getPlayer().getName());
+    }
+}
@@ -12,6 +12,7 @@ import com.nijiko.data.StorageFactory;
 public class PermissionsSql extends JavaPlugin {
 
     private final PermissionsListener pListener = new PermissionsListener();
+    private final PermissionsPlayerListener playerListener = new PermissionsPlayerListener();
     public final Logger log = Logger.getLogger("Minecraft");
     private final SqlCreator creator = new SqlCreator();
 
@@ -28,6 +29,7 @@ public class PermissionsSql extends JavaPlugin {
     public void onEnable() {
         StorageFactory.registerCreator("SQL", creator);
         getServer().getPluginManager().registerEvent(Type.CUSTOM_EVENT, pListener, Priority.Monitor, this);
+        getServer().getPluginManager().registerEvent(Type.PLAYER_QUIT, playerListener, Priority.Monitor, this);
         log.info("[Permissions] SQL Interface enabled!");
     }
 
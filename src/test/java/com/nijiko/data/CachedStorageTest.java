@@ -0,0 +1,87 @@
+package com.nijiko.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachedStorageTest {
+
+    private File db;
+    private SqlUserStorage raw;
+
+    @Before
+    public void setUp() throws Exception {
+        db = File.createTempFile("permissions", ".db");
+        SqlStorage.init("SQLITE", "jdbc:sqlite:" + db.getPath(), null, null, 0, new SqlStorage.Settings());
+        raw = SqlStorage.getUserStorage("world");
+        raw.create("bob");
+        raw.addPermission("bob", "old");
+    }
+
+    @After
+    public void tearDown() {
+        SqlStorage.closeAll();
+        db.delete();
+    }
+
+    @Test
+    public void writesShowThroughTheCache() {
+        CachedUserStorage users = new CachedUserStorage(raw);
+        assertEquals(set("old"), users.getPermissions("bob"));
+        users.addPermission("bob", "new");
+        users.removePermission("bob", "old");
+        assertEquals(set("new"), users.getPermissions("bob"));
+        assertEquals(set("new"), raw.getPermissions("bob"));
+    }
+
+    @Test
+    public void loadRacingAnInvalidationIsNotCached() throws Exception {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicBoolean first = new AtomicBoolean(true);
+        // Holds the first load after it has read the database, until the entry has changed under it
+        final CachedUserStorage users = new CachedUserStorage(new SqlUserStorage("world", SqlStorage.getWorld("world")) {
+            @Override
+            public Set<String> getPermissions(String name) {
+                Set<String> perms = super.getPermissions(name);
+                if (first.compareAndSet(true, false)) {
+                    loaded.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return perms;
+            }
+        });
+        Thread loader = new Thread() {
+            @Override
+            public void run() {
+                users.getPermissions("bob");
+            }
+        };
+        loader.start();
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+        raw.addPermission("bob", "new");
+        users.invalidate("bob", ChangeLog.PERMISSIONS);
+        proceed.countDown();
+        loader.join();
+        assertEquals(set("old", "new"), users.getPermissions("bob"));
+    }
+
+    private static Set<String> set(String... perms) {
+        return new HashSet<String>(Arrays.asList(perms));
+    }
+}
@@ -0,0 +1,64 @@
+package com.nijiko.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeLogTest {
+
+    private static final String logChange = "INSERT INTO PrChangeLog (seq, entryid, kind, origin) VALUES (?,?,?,?);";
+    private File db;
+    private SqlUserStorage raw;
+    private CachedUserStorage users;
+    private ChangeLog changeLog;
+
+    @Before
+    public void setUp() throws Exception {
+        db = File.createTempFile("permissions", ".db");
+        SqlStorage.Settings settings = new SqlStorage.Settings();
+        settings.changeLog = true;
+        settings.changeLogInterval = 1000000L; // Polled by hand
+        SqlStorage.init("SQLITE", "jdbc:sqlite:" + db.getPath(), null, null, 0, settings);
+        raw = SqlStorage.getUserStorage("world");
+        users = new CachedUserStorage(raw);
+        changeLog = SqlStorage.getChangeLog();
+        changeLog.register(users);
+        users.addPermission("bob", "a");
+        changeLog.poll();
+    }
+
+    @After
+    public void tearDown() {
+        SqlStorage.closeAll();
+        db.delete();
+    }
+
+    @Test
+    public void changeFromAnotherServerInvalidates() {
+        int bob = raw.getCachedId("bob");
+        assertEquals(new HashSet<String>(Arrays.asList("a")), users.getPermissions("bob"));
+        SqlStorage.runUpdate("INSERT INTO PrPermissions (entryid, permstring) VALUES (?,?);", new Object[] { bob, "b" });
+        SqlStorage.runUpdate(logChange, new Object[] { 100, bob, ChangeLog.PERMISSIONS, "other" });
+        changeLog.poll();
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), users.getPermissions("bob"));
+    }
+
+    @Test
+    public void lateChangeFillsGap() {
+        int bob = raw.getCachedId("bob");
+        SqlStorage.runUpdate(logChange, new Object[] { 200, bob, ChangeLog.PERMISSIONS, "other" });
+        changeLog.poll();
+        assertEquals(new HashSet<String>(Arrays.asList("a")), users.getPermissions("bob"));
+        // Committed after seq 200 was seen, with a sequence number below it
+        SqlStorage.runUpdate("INSERT INTO PrPermissions (entryid, permstring) VALUES (?,?);", new Object[] { bob, "late" });
+        SqlStorage.runUpdate(logChange, new Object[] { 150, bob, ChangeLog.PERMISSIONS, "other" });
+        changeLog.poll();
+        assertEquals(new HashSet<String>(Arrays.asList("a", "late")), users.getPermissions("bob"));
+    }
+}
@@ -0,0 +1,64 @@
+package com.nijiko.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+public class PermissionSetTest {
+
+    private final PermissionSet perms = new PermissionSet(Arrays.asList("a.b.c", "a.*", "-a.d.*", "a.d.ok", "x", "-y.z"));
+
+    @Test
+    public void exactNodes() {
+        assertEquals(Boolean.TRUE, perms.check("a.b.c"));
+        assertEquals(Boolean.TRUE, perms.check("x"));
+        assertEquals(Boolean.FALSE, perms.check("y.z"));
+        assertNull(perms.check("q"));
+    }
+
+    @Test
+    public void wildcards() {
+        assertEquals(Boolean.TRUE, perms.check("a.q"));
+        assertEquals(Boolean.FALSE, perms.check("a.d.e"));
+        assertEquals(Boolean.TRUE, perms.check("a.d.ok")); // Exact beats a wildcard
+        assertNull(perms.check("a")); // a.* doesn't cover a itself
+    }
+
+    @Test
+    public void rootWildcards() {
+        perms.add("*");
+        assertEquals(Boolean.TRUE, perms.check("anything.here"));
+        assertEquals(Boolean.FALSE, perms.check("a.d.e")); // The deeper wildcard wins
+        perms.add("-*");
+        assertEquals(Boolean.FALSE, perms.check("q"));
+    }
+
+    @Test
+    public void hasUnder() {
+        assertTrue(perms.hasUnder("a.d"));
+        assertTrue(perms.hasUnder("y"));
+        assertFalse(perms.hasUnder("b"));
+    }
+
+    @Test
+    public void removal() {
+        perms.remove("a.*");
+        assertNull(perms.check("a.q"));
+        assertEquals(Boolean.TRUE, perms.check("a.b.c"));
+        for (Iterator<String> iter = perms.iterator(); iter.hasNext();) {
+            if (iter.next().startsWith("a."))
+                iter.remove();
+        }
+        assertFalse(perms.hasUnder("a.b"));
+        assertTrue(perms.hasUnder("a.d"));
+        perms.clear();
+        assertEquals(0, perms.size());
+        assertNull(perms.check("x"));
+    }
+}
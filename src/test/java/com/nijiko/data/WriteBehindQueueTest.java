@@ -0,0 +1,110 @@
+package com.nijiko.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+
+    private File db;
+    private SqlUserStorage raw;
+    private CachedUserStorage users;
+
+    @Before
+    public void setUp() throws Exception {
+        db = File.createTempFile("permissions", ".db");
+        SqlStorage.Settings settings = new SqlStorage.Settings();
+        settings.writeBehind = true;
+        settings.writeBehindDelay = 200L;
+        SqlStorage.init("SQLITE", "jdbc:sqlite:" + db.getPath(), null, null, 0, settings);
+        SqlGroupStorage groups = SqlStorage.getGroupStorage("world");
+        groups.create("admin");
+        groups.create("member");
+        raw = SqlStorage.getUserStorage("world");
+        users = new CachedUserStorage(raw);
+        SqlStorage.getEffectivePermissions().register(users);
+        users.create("bob");
+    }
+
+    @After
+    public void tearDown() {
+        SqlStorage.closeAll();
+        db.delete();
+    }
+
+    @Test
+    public void mergedWritesKeepTheirOrder() {
+        WriteBehindQueue queue = SqlStorage.getWriteQueue();
+        synchronized (queue) {
+            raw.addParent("bob", "world", "admin");
+            raw.addParent("bob", "world", "member");
+            raw.addParent("bob", "world", "admin"); // Merges into the first write, in its place
+        }
+        raw.forceSave();
+        assertEquals(Arrays.asList("admin", "member"), names(raw.getParents("bob")));
+    }
+
+    @Test
+    public void laterWriteReplacesPendingOne() {
+        WriteBehindQueue queue = SqlStorage.getWriteQueue();
+        synchronized (queue) { // Keeps the writer from taking a batch in between
+            raw.addPermission("bob", "a");
+            raw.removePermission("bob", "a");
+            raw.addPermission("bob", "b");
+            assertEquals(2, queue.getPendingCount());
+        }
+        raw.forceSave();
+        assertEquals(Arrays.asList("b"), new ArrayList<String>(raw.getPermissions("bob")));
+    }
+
+    @Test
+    public void failedWriteIsDroppedFromTheCache() throws Exception {
+        execute("CREATE TRIGGER reject BEFORE INSERT ON PrPermissions WHEN NEW.permstring = 'bad' BEGIN SELECT RAISE(ABORT, 'rejected'); END");
+        users.addPermission("bob", "good");
+        users.addPermission("bob", "bad");
+        users.forceSave();
+        assertEquals(Arrays.asList("good"), new ArrayList<String>(users.getPermissions("bob")));
+    }
+
+    @Test
+    public void writeToDeletedEntryRecreatesIt() throws Exception {
+        int old = raw.getId("bob");
+        execute("DELETE FROM PrEntries WHERE entryid = " + old);
+        users.addPermission("bob", "a");
+        users.forceSave();
+        assertFalse(old == raw.getId("bob"));
+        assertEquals(Arrays.asList("a"), new ArrayList<String>(raw.getPermissions("bob")));
+        assertEquals(Arrays.asList("a"), new ArrayList<String>(users.getPermissions("bob")));
+    }
+
+    private static void execute(String sql) throws Exception {
+        Connection conn = SqlStorage.getConnection();
+        try {
+            Statement s = conn.createStatement();
+            s.execute("PRAGMA foreign_keys = ON;");
+            s.execute(sql);
+            s.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static List<String> names(Collection<GroupWorld> parents) {
+        List<String> names = new ArrayList<String>();
+        for (GroupWorld gw : parents) {
+            names.add(gw.getName());
+        }
+        return names;
+    }
+}